@@ -0,0 +1,170 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A filter for routes whose handlers block, for example on JDBC calls. The handler is called and subscribed
+ * on a dedicated executor instead of the event loop, so it cannot stall the other routes on that loop.
+ *
+ * The number of requests running or waiting on the executor is bounded; requests over the bound are
+ * answered with 503 Service Unavailable straight away and counted in {@link #getRejected()}. A request
+ * unsubscribed while its handler blocks, for example by a {@link Deadline}, keeps counting until the handler returns.
+ *
+ * Example:
+ *
+ * {@code
+ *	Blocking<ByteBuf, ByteBuf> jdbc = Blocking.onThreads("jdbc", 16, 256);
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.GET("/legacy/orders/:id", jdbc.applyTo(legacyOrdersHandler));
+ * }
+ */
+public final class Blocking<I, O> implements Filter<I, O> {
+
+	private static final AsciiString ZERO = AsciiString.of("0");
+
+	private final Executor executor;
+	private final Scheduler scheduler;
+	private final int capacity;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private Blocking(Executor executor, int capacity) {
+		this.executor = executor;
+		this.scheduler = Schedulers.from(executor);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param name prefix of the thread names
+	 * @param threads the number of threads running handlers
+	 * @param queueSize the number of requests allowed to wait for a thread
+	 */
+	public static <I, O> Blocking<I, O> onThreads(String name, int threads, int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreads(name)
+		);
+		executor.allowCoreThreadTimeOut(true);
+		return new Blocking<>(executor, threads + queueSize);
+	}
+
+	/**
+	 * Runs each handler on its own virtual thread when the runtime supports them (Java 21+),
+	 * and falls back to {@link #onThreads} with as many threads as requests otherwise.
+	 *
+	 * @param maxConcurrent the number of requests allowed at once
+	 */
+	public static <I, O> Blocking<I, O> onVirtualThreads(int maxConcurrent) {
+		ThreadFactory factory = VirtualThreads.FACTORY;
+		if (factory == null) {
+			return onThreads("blocking", maxConcurrent, 0);
+		}
+		return new Blocking<>(runnable -> factory.newThread(runnable).start(), maxConcurrent);
+	}
+
+	/**
+	 * @return whether this runtime supports virtual threads
+	 */
+	public static boolean virtualThreadsAvailable() {
+		return VirtualThreads.FACTORY != null;
+	}
+
+	public int getPending() {
+		return pending.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Stops the thread pool, if any, once the handlers already accepted are done.
+	 */
+	public void shutdown() {
+		if (executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	@Override
+	public Observable<Void> filter(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<O> response, Route<I, O> next) {
+		// the slot and its start flag belong to one subscription
+		return Observable.defer(() -> {
+			int current;
+			do {
+				current = pending.get();
+				if (current >= capacity) {
+					rejected.incrementAndGet();
+					response.setStatus(HttpResponseStatus.SERVICE_UNAVAILABLE);
+					response.setHeader(HttpHeaderNames.CONTENT_LENGTH, ZERO);
+					return response.sendHeaders();
+				}
+			} while (!pending.compareAndSet(current, current + 1));
+
+			// the slot is held until the handler returns on its thread, even if the request is
+			// unsubscribed meanwhile, since the thread stays busy; it is only given back on
+			// unsubscription when the handler has not started yet
+			AtomicBoolean started = new AtomicBoolean();
+			return Observable.<Void>create(subscriber -> {
+				if (!started.compareAndSet(false, true)) {
+					return;
+				}
+				try {
+					Observable.defer(() -> next.handle(params, request, response)).unsafeSubscribe(subscriber);
+				} finally {
+					pending.decrementAndGet();
+				}
+			})
+				.subscribeOn(scheduler)
+				.doOnUnsubscribe(() -> {
+					if (started.compareAndSet(false, true)) {
+						pending.decrementAndGet();
+					}
+				});
+		});
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + '-' + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Looked up reflectively so that the library keeps running on Java 8.
+	 */
+	private static class VirtualThreads {
+		private static final ThreadFactory FACTORY = lookup();
+
+		private static ThreadFactory lookup() {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "blocking-", 0L);
+				return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			} catch (ReflectiveOperationException | LinkageError e) {
+				return null;
+			}
+		}
+	}
+}
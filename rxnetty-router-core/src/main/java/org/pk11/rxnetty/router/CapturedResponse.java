@@ -0,0 +1,198 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
+import io.netty.util.IllegalReferenceCountException;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import rx.Observable;
+import rx.functions.Action0;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The status, headers and body produced by a Renderer, held in a single pooled buffer
+ * that is written again with {@link ByteBuf#retainedDuplicate()} for every replay.
+ *
+ * Only the headers set by the renderer are captured, not those already on the response,
+ * such as CORS headers added for the origin of the first request.
+ *
+ * Holders of the response are counted here rather than on the buffer: a pooled buffer may be recycled
+ * for another request as soon as it is released, after which retaining it again would succeed on someone
+ * else's bytes. The count is only incremented while it is above zero and the buffer is released once,
+ * when it drops to zero.
+ */
+final class CapturedResponse {
+
+	private final HttpResponseStatus status;
+	private final AsciiString[] names;
+	private final List<List<Object>> values;
+	private final AsciiString contentLength;
+	private final ByteBuf body;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	private CapturedResponse(HttpResponseStatus status, Map<AsciiString, List<Object>> headers, ByteBuf body) {
+		this.status = status;
+		this.names = headers.keySet().toArray(new AsciiString[0]);
+		this.values = new ArrayList<>(headers.values());
+		this.contentLength = AsciiString.of(Integer.toString(body.readableBytes()));
+		this.body = body;
+	}
+
+	/**
+	 * Runs the renderer against the response and captures what it produces, without writing the body.
+	 */
+	static <I> Observable<CapturedResponse> capture(
+		Renderer<I> renderer,
+		Map<String, String> params,
+		HttpServerRequest<I> request,
+		HttpServerResponse<ByteBuf> response
+	) {
+		Map<String, List<String>> before = headersOf(response);
+		ByteBufAllocator allocator = response.unsafeNettyChannel().alloc();
+		List<ByteBuf> chunks = new ArrayList<>(2);
+		AtomicBoolean released = new AtomicBoolean();
+		Action0 release = () -> {
+			if (released.compareAndSet(false, true)) {
+				chunks.forEach(ByteBuf::release);
+			}
+		};
+		return renderer.render(params, request, response)
+			.doOnNext(chunks::add)
+			.ignoreElements()
+			.cast(CapturedResponse.class)
+			.concatWith(Observable.fromCallable(() -> {
+				int size = 0;
+				for (ByteBuf chunk : chunks) {
+					size += chunk.readableBytes();
+				}
+				ByteBuf body = allocator.directBuffer(size, size);
+				for (ByteBuf chunk : chunks) {
+					body.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+				}
+				return new CapturedResponse(response.getStatus(), changedHeaders(before, response), body);
+			}))
+			.doOnTerminate(release)
+			.doOnUnsubscribe(release);
+	}
+
+	HttpResponseStatus status() {
+		return status;
+	}
+
+	int size() {
+		return body.capacity();
+	}
+
+	/**
+	 * @return false if the response sets a cookie or its Cache-Control makes it private or not storable,
+	 * in which case it must not be replayed to other requests
+	 */
+	boolean isShareable() {
+		for (int i = 0; i < names.length; i++) {
+			if (HttpHeaderNames.SET_COOKIE.contentEqualsIgnoreCase(names[i])) {
+				return false;
+			}
+			if (HttpHeaderNames.CACHE_CONTROL.contentEqualsIgnoreCase(names[i])) {
+				for (Object value : values.get(i)) {
+					for (String directive : value.toString().split(",")) {
+						String name = directive.trim().toLowerCase(Locale.ROOT);
+						if (name.equals("no-store") || name.equals("private") || name.startsWith("private=")) {
+							return false;
+						}
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	Observable<Void> replay(HttpServerResponse<ByteBuf> response) {
+		response.setStatus(status);
+		for (int i = 0; i < names.length; i++) {
+			response.setHeader(names[i], values.get(i));
+		}
+		response.setHeader(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+		return response.write(Observable.fromCallable(body::retainedDuplicate));
+	}
+
+	/**
+	 * Replays the response, then releases the caller's reference once the replay terminates or is unsubscribed.
+	 * The body stays retained until the write has taken its duplicate.
+	 */
+	Observable<Void> replayAndRelease(HttpServerResponse<ByteBuf> response) {
+		AtomicBoolean released = new AtomicBoolean();
+		Action0 release = () -> {
+			if (released.compareAndSet(false, true)) {
+				release();
+			}
+		};
+		return replay(response)
+			.doAfterTerminate(release)
+			.doOnUnsubscribe(release);
+	}
+
+	CapturedResponse retain() {
+		if (tryRetain() == null) {
+			throw new IllegalReferenceCountException(0, 1);
+		}
+		return this;
+	}
+
+	/**
+	 * @return this response retained, or null if it has already been released
+	 */
+	CapturedResponse tryRetain() {
+		for (;;) {
+			int count = references.get();
+			if (count == 0) {
+				return null;
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return this;
+			}
+		}
+	}
+
+	void release() {
+		int count = references.decrementAndGet();
+		if (count == 0) {
+			body.release();
+		} else if (count < 0) {
+			throw new IllegalReferenceCountException(0, -1);
+		}
+	}
+
+	private static Map<String, List<String>> headersOf(HttpServerResponse<?> response) {
+		Map<String, List<String>> headers = new HashMap<>();
+		for (String name : response.getHeaderNames()) {
+			headers.put(name, response.getAllHeaderValues(name));
+		}
+		return headers;
+	}
+
+	private static Map<AsciiString, List<Object>> changedHeaders(Map<String, List<String>> before, HttpServerResponse<?> response) {
+		Map<AsciiString, List<Object>> changed = new LinkedHashMap<>();
+		for (String name : response.getHeaderNames()) {
+			List<String> values = response.getAllHeaderValues(name);
+			if (!HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name) && !values.equals(before.get(name))) {
+				List<Object> encoded = new ArrayList<>(values.size());
+				for (String value : values) {
+					encoded.add(AsciiString.of(value));
+				}
+				changed.put(AsciiString.of(name), encoded);
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,540 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.handler.codec.http.HttpMethod;
+import jauter.Pattern;
+import jauter.Routed;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Route storage for very large route tables. Paths are kept as a trie of interned segments whose nodes,
+ * children and routes live in packed int arrays, so each distinct segment is stored once and a route
+ * costs a few array slots instead of a Pattern with its own path and token strings.
+ *
+ * Matching gives the same results as jauter: routes added with patternFirst win over the others, and
+ * those with patternLast lose to them; within each group the route added earliest wins. Reverse routing
+ * rebuilds a path from the segments of a route the same way jauter does from a Pattern.
+ */
+final class CompactRoutes<T> {
+
+	static final byte FIRST = 0;
+	static final byte OTHER = 1;
+	static final byte LAST = 2;
+
+	private static final int ANY_METHOD = 0;
+	private static final String CATCH_ALL = ":*";
+	private static final int NONE = -1;
+
+	private final Map<String, Integer> segmentIds = new HashMap<>();
+	private String[] segments = new String[64];
+	// the param name of each segment, null for literal segments
+	private String[] paramNames = new String[64];
+	private int segmentCount;
+
+	private final Map<HttpMethod, Integer> methodIds = new HashMap<>();
+	private final List<HttpMethod> methods = new ArrayList<>();
+
+	// node 0 is the root
+	private int[] parents = new int[64];
+	private int[] nodeSegments = new int[64];
+	private int[] depths = new int[64];
+	private int[] firstParamChildren = filled(64);
+	private int[] nextParamSiblings = filled(64);
+	private int[] firstRoutes = filled(64);
+	private int nodeCount = 1;
+
+	// literal children, open addressing from node and segment to child node, 0 for an empty slot
+	private long[] childKeys = new long[64];
+	private int[] childNodes = new int[64];
+	private int childCount;
+
+	// route slots are never reused, so that a lower slot always means an earlier route
+	private Object[] targets = new Object[64];
+	private int[] routeNodes = new int[64];
+	private int[] nextRoutes = new int[64];
+	private byte[] routeMethods = new byte[64];
+	private byte[] routeGroups = new byte[64];
+	private int routeCount;
+	private int liveRoutes;
+	private int[] catchAlls = new int[8];
+	private int catchAllCount;
+
+	CompactRoutes() {
+		methodIds.put(null, ANY_METHOD);
+		methods.add(null);
+	}
+
+	/**
+	 * @param method the method to route, null for any method
+	 */
+	void add(byte group, HttpMethod method, String path, T target) {
+		String[] tokens = tokens(path);
+		int node = 0;
+		for (String token : tokens) {
+			int segment = intern(token);
+			int child = paramNames[segment] != null ? paramChild(node, segment) : literalChild(node, segment);
+			node = child != NONE ? child : addNode(node, segment);
+		}
+
+		int route = routeCount++;
+		if (route == targets.length) {
+			int capacity = route * 2;
+			targets = Arrays.copyOf(targets, capacity);
+			routeNodes = Arrays.copyOf(routeNodes, capacity);
+			nextRoutes = Arrays.copyOf(nextRoutes, capacity);
+			routeMethods = Arrays.copyOf(routeMethods, capacity);
+			routeGroups = Arrays.copyOf(routeGroups, capacity);
+		}
+		targets[route] = target;
+		routeNodes[route] = node;
+		routeMethods[route] = (byte) methodId(method);
+		routeGroups[route] = group;
+		nextRoutes[route] = firstRoutes[node];
+		firstRoutes[node] = route;
+		liveRoutes++;
+
+		if (tokens.length > 0 && CATCH_ALL.equals(tokens[tokens.length - 1])) {
+			if (catchAllCount == catchAlls.length) {
+				catchAlls = Arrays.copyOf(catchAlls, catchAllCount * 2);
+			}
+			catchAlls[catchAllCount++] = route;
+		}
+	}
+
+	/**
+	 * @param method the method of the request, null to look at routes for any method only
+	 * @return the matched route, or null if no route matches
+	 */
+	@SuppressWarnings("unchecked")
+	Routed<T> route(HttpMethod method, String path) {
+		String[] tokens = tokens(path);
+		Integer methodId = methodIds.get(method);
+		int route = methodId != null && methodId != ANY_METHOD ? match(tokens, methodId) : NONE;
+		if (route == NONE) {
+			route = match(tokens, ANY_METHOD);
+		}
+		return route == NONE ? null : new Routed<>((T) targets[route], false, params(route, tokens));
+	}
+
+	/**
+	 * @return whether a route for exactly this method matches, ignoring routes for any method
+	 */
+	boolean hasRoute(HttpMethod method, String path) {
+		Integer methodId = methodIds.get(method);
+		return methodId != null && methodId != ANY_METHOD && match(tokens(path), methodId) != NONE;
+	}
+
+	/**
+	 * @return the methods with a route matching the path, with null standing for any method
+	 */
+	List<HttpMethod> methodsFor(String path) {
+		String[] tokens = tokens(path);
+		List<HttpMethod> matching = new ArrayList<>();
+		for (int id = 0; id < methods.size(); id++) {
+			if (match(tokens, id) != NONE) {
+				matching.add(methods.get(id));
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * Like jauter, tries the routes for the method, then those for any method.
+	 *
+	 * @param method the method of the route, null for routes for any method only
+	 * @param params name and value pairs, or a single map, the ones not in the route go to the query string
+	 * @return the path, or null if no route has the target and all of its params
+	 */
+	String path(HttpMethod method, Object target, Object... params) {
+		Map<Object, Object> values = paramMap(params);
+		Integer methodId = methodIds.get(method);
+		String path = methodId != null && methodId != ANY_METHOD ? path(methodId, target, values) : null;
+		return path != null ? path : path(ANY_METHOD, target, values);
+	}
+
+	/**
+	 * Tries the routes of each method in the order the methods were first added, then those for any method.
+	 */
+	String path(Object target, Object... params) {
+		Map<Object, Object> values = paramMap(params);
+		for (int id = 1; id < methods.size(); id++) {
+			String path = path(id, target, values);
+			if (path != null) {
+				return path;
+			}
+		}
+		return path(ANY_METHOD, target, values);
+	}
+
+	void removeTarget(Object target) {
+		for (int route = 0; route < routeCount; route++) {
+			if (targets[route] != null && targets[route].equals(target)) {
+				unlink(route);
+			}
+		}
+	}
+
+	void removePath(String path) {
+		int node = 0;
+		for (String token : tokens(path)) {
+			Integer segment = segmentIds.get(token);
+			if (segment == null) {
+				return;
+			}
+			node = paramNames[segment] != null ? paramChild(node, segment) : literalChild(node, segment);
+			if (node == NONE) {
+				return;
+			}
+		}
+		while (firstRoutes[node] != NONE) {
+			unlink(firstRoutes[node]);
+		}
+	}
+
+	/**
+	 * @return the patterns of the routes, rebuilt from their segments
+	 */
+	Set<String> paths() {
+		Set<String> paths = new LinkedHashSet<>();
+		for (int route = 0; route < routeCount; route++) {
+			if (targets[route] != null) {
+				paths.add(path(routeNodes[route]));
+			}
+		}
+		return paths;
+	}
+
+	int size() {
+		return liveRoutes;
+	}
+
+	/**
+	 * @return an estimate of the heap taken by the routes, not counting their handlers
+	 */
+	long estimatedBytes() {
+		long bytes = intArrays(parents, nodeSegments, depths, firstParamChildren, nextParamSiblings, firstRoutes)
+			+ intArrays(childNodes, routeNodes, nextRoutes, catchAlls)
+			+ 16 + 8L * childKeys.length
+			+ 2 * (16 + (long) routeMethods.length)
+			+ 16 + 4L * targets.length
+			+ 2 * (16 + 4L * segments.length);
+		for (int segment = 0; segment < segmentCount; segment++) {
+			// the string, its hash map entry and boxed id, and the param name
+			bytes += 40 + 2L * segments[segment].length() + 52;
+			if (paramNames[segment] != null) {
+				bytes += 40 + 2L * paramNames[segment].length();
+			}
+		}
+		return bytes;
+	}
+
+	private int match(String[] tokens, int methodId) {
+		int best = search(0, 0, tokens, methodId, NONE);
+		for (int i = 0; i < catchAllCount; i++) {
+			int route = catchAlls[i];
+			// like jauter, a catch-all taking more than one segment does not compare the segments before it
+			if (targets[route] != null && routeMethods[route] == methodId && tokens.length > depths[routeNodes[route]]) {
+				best = better(best, route);
+			}
+		}
+		return best;
+	}
+
+	private int search(int node, int depth, String[] tokens, int methodId, int best) {
+		if (depth == tokens.length) {
+			for (int route = firstRoutes[node]; route != NONE; route = nextRoutes[route]) {
+				if (routeMethods[route] == methodId) {
+					best = better(best, route);
+				}
+			}
+			return best;
+		}
+		Integer segment = segmentIds.get(tokens[depth]);
+		if (segment != null && paramNames[segment] == null) {
+			int child = literalChild(node, segment);
+			if (child != NONE) {
+				best = search(child, depth + 1, tokens, methodId, best);
+			}
+		}
+		for (int child = firstParamChildren[node]; child != NONE; child = nextParamSiblings[child]) {
+			best = search(child, depth + 1, tokens, methodId, best);
+		}
+		return best;
+	}
+
+	private int better(int best, int route) {
+		if (best == NONE || routeGroups[route] < routeGroups[best] || (routeGroups[route] == routeGroups[best] && route < best)) {
+			return route;
+		}
+		return best;
+	}
+
+	private Map<String, String> params(int route, String[] tokens) {
+		Map<String, String> params = new HashMap<>();
+		int node = routeNodes[route];
+		int depth = depths[node];
+		if (depth < tokens.length) {
+			// a catch-all taking the rest of the path
+			params.put("*", String.join("/", Arrays.asList(tokens).subList(depth - 1, tokens.length)));
+			node = parents[node];
+			depth--;
+		}
+		for (; node != 0; node = parents[node], depth--) {
+			String name = paramNames[nodeSegments[node]];
+			if (name != null) {
+				params.put(name, tokens[depth - 1]);
+			}
+		}
+		return params;
+	}
+
+	private String path(int methodId, Object target, Map<Object, Object> values) {
+		for (byte group = FIRST; group <= LAST; group++) {
+			String best = null;
+			int fewestUnused = Integer.MAX_VALUE;
+			for (int route = 0; route < routeCount; route++) {
+				if (targets[route] == null || routeMethods[route] != methodId || routeGroups[route] != group
+					|| !targets[route].equals(target)) {
+					continue;
+				}
+				Set<String> used = new HashSet<>();
+				String path = path(routeNodes[route], values, used);
+				// like jauter, the route leaving the fewest params for the query string wins
+				if (path != null && values.size() - used.size() < fewestUnused) {
+					best = path + query(values, used);
+					fewestUnused = values.size() - used.size();
+				}
+			}
+			if (best != null) {
+				return best;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the path of the node with its params filled in, or null if a value is missing
+	 */
+	private String path(int node, Map<Object, Object> values, Set<String> used) {
+		String[] tokens = new String[depths[node]];
+		for (; node != 0; node = parents[node]) {
+			tokens[depths[node] - 1] = segments[nodeSegments[node]];
+		}
+		StringBuilder path = new StringBuilder();
+		for (String token : tokens) {
+			path.append('/');
+			if (token.length() > 0 && token.charAt(0) == ':') {
+				String name = token.substring(1);
+				Object value = values.get(name);
+				if (value == null) {
+					return null;
+				}
+				used.add(name);
+				path.append(value);
+			} else {
+				path.append(token);
+			}
+		}
+		return path.toString();
+	}
+
+	private static String query(Map<Object, Object> values, Set<String> used) {
+		StringBuilder query = new StringBuilder();
+		for (Map.Entry<Object, Object> entry : values.entrySet()) {
+			String name = entry.getKey().toString();
+			if (!used.contains(name)) {
+				query.append(query.length() == 0 ? '?' : '&')
+					.append(encode(name))
+					.append('=')
+					.append(encode(entry.getValue().toString()));
+			}
+		}
+		return query.toString();
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<Object, Object> paramMap(Object[] params) {
+		if (params.length == 1 && params[0] instanceof Map) {
+			return (Map<Object, Object>) params[0];
+		}
+		if (params.length % 2 == 1) {
+			throw new RuntimeException("Missing value for param: " + params[params.length - 1]);
+		}
+		Map<Object, Object> values = new HashMap<>();
+		for (int i = 0; i < params.length; i += 2) {
+			values.put(params[i].toString(), params[i + 1].toString());
+		}
+		return values;
+	}
+
+	private void unlink(int route) {
+		int node = routeNodes[route];
+		if (firstRoutes[node] == route) {
+			firstRoutes[node] = nextRoutes[route];
+		} else {
+			int previous = firstRoutes[node];
+			while (nextRoutes[previous] != route) {
+				previous = nextRoutes[previous];
+			}
+			nextRoutes[previous] = nextRoutes[route];
+		}
+		targets[route] = null;
+		liveRoutes--;
+	}
+
+	private String path(int node) {
+		StringBuilder path = new StringBuilder();
+		for (; node != 0; node = parents[node]) {
+			path.insert(0, segments[nodeSegments[node]]).insert(0, '/');
+		}
+		return path.length() == 0 ? "/" : path.toString();
+	}
+
+	private int intern(String token) {
+		Integer id = segmentIds.get(token);
+		if (id != null) {
+			return id;
+		}
+		if (segmentCount == segments.length) {
+			segments = Arrays.copyOf(segments, segmentCount * 2);
+			paramNames = Arrays.copyOf(paramNames, segmentCount * 2);
+		}
+		segments[segmentCount] = token;
+		paramNames[segmentCount] = token.startsWith(":") ? token.substring(1) : null;
+		segmentIds.put(token, segmentCount);
+		return segmentCount++;
+	}
+
+	private int methodId(HttpMethod method) {
+		Integer id = methodIds.get(method);
+		if (id == null) {
+			if (methods.size() == Byte.MAX_VALUE) {
+				throw new IllegalArgumentException(String.format("Too many methods to add %s", method));
+			}
+			id = methods.size();
+			methodIds.put(method, id);
+			methods.add(method);
+		}
+		return id;
+	}
+
+	private int addNode(int parent, int segment) {
+		int node = nodeCount++;
+		if (node == parents.length) {
+			int capacity = node * 2;
+			parents = Arrays.copyOf(parents, capacity);
+			nodeSegments = Arrays.copyOf(nodeSegments, capacity);
+			depths = Arrays.copyOf(depths, capacity);
+			firstParamChildren = grow(firstParamChildren, capacity);
+			nextParamSiblings = grow(nextParamSiblings, capacity);
+			firstRoutes = grow(firstRoutes, capacity);
+		}
+		parents[node] = parent;
+		nodeSegments[node] = segment;
+		depths[node] = depths[parent] + 1;
+		if (paramNames[segment] != null) {
+			nextParamSiblings[node] = firstParamChildren[parent];
+			firstParamChildren[parent] = node;
+		} else {
+			putLiteralChild(parent, segment, node);
+		}
+		return node;
+	}
+
+	private int paramChild(int node, int segment) {
+		for (int child = firstParamChildren[node]; child != NONE; child = nextParamSiblings[child]) {
+			if (nodeSegments[child] == segment) {
+				return child;
+			}
+		}
+		return NONE;
+	}
+
+	private int literalChild(int node, int segment) {
+		long key = childKey(node, segment);
+		int mask = childKeys.length - 1;
+		for (int slot = slot(key, mask); childNodes[slot] != 0; slot = (slot + 1) & mask) {
+			if (childKeys[slot] == key) {
+				return childNodes[slot];
+			}
+		}
+		return NONE;
+	}
+
+	private void putLiteralChild(int node, int segment, int child) {
+		if (2 * (childCount + 1) > childKeys.length) {
+			long[] oldKeys = childKeys;
+			int[] oldNodes = childNodes;
+			childKeys = new long[oldKeys.length * 2];
+			childNodes = new int[oldNodes.length * 2];
+			for (int slot = 0; slot < oldKeys.length; slot++) {
+				if (oldNodes[slot] != 0) {
+					insert(oldKeys[slot], oldNodes[slot]);
+				}
+			}
+		}
+		insert(childKey(node, segment), child);
+		childCount++;
+	}
+
+	private void insert(long key, int child) {
+		int mask = childKeys.length - 1;
+		int slot = slot(key, mask);
+		while (childNodes[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		childKeys[slot] = key;
+		childNodes[slot] = child;
+	}
+
+	private static long childKey(int node, int segment) {
+		return ((long) node << 32) | segment;
+	}
+
+	private static int slot(long key, int mask) {
+		long hash = key * 0x9e3779b97f4a7c15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	private static String[] tokens(String path) {
+		return Pattern.removeSlashAtBothEnds(path).split("/");
+	}
+
+	private static int[] filled(int length) {
+		int[] array = new int[length];
+		Arrays.fill(array, NONE);
+		return array;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int length = array.length;
+		int[] grown = Arrays.copyOf(array, capacity);
+		Arrays.fill(grown, length, capacity, NONE);
+		return grown;
+	}
+
+	private static long intArrays(int[]... arrays) {
+		long bytes = 0;
+		for (int[] array : arrays) {
+			bytes += 16 + 4L * array.length;
+		}
+		return bytes;
+	}
+}
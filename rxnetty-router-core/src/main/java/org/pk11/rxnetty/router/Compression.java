@@ -0,0 +1,295 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import rx.Observable;
+import rx.Subscriber;
+import rx.subjects.UnicastSubject;
+import rx.subscriptions.Subscriptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Per-route gzip compression, for routes returning their body as a {@link Renderer}.
+ *
+ * A response is compressed when the client accepts gzip, its Content-Type is in the allow-list and its body
+ * reaches the minimum size. Only the start of the body is held back until the minimum size is reached; the
+ * rest is compressed and written chunk by chunk. Deflaters are pooled per event loop thread.
+ *
+ * Example:
+ *
+ * {@code
+ *	Compression<ByteBuf> compression = Compression.gzip(1024);
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.GET("/api/orders", compression.compressed((params, request, response) -> {
+ *			response.setHeader("Content-Type", "application/json");
+ *			return orders.toJson();
+ *		}));
+ * }
+ */
+public final class Compression<I> {
+
+	public static final List<String> DEFAULT_CONTENT_TYPES = Collections.unmodifiableList(Arrays.asList(
+		"text/", "application/json", "application/javascript", "application/xml", "image/svg+xml", "+json", "+xml"
+	));
+
+	private static final int MAX_POOLED_DEFLATERS = 8;
+	private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	private final int minSize;
+	private final int level;
+	private final List<String> contentTypes;
+	private final FastThreadLocal<ArrayDeque<Deflater>> deflaters;
+
+	private Compression(int minSize, int level, List<String> contentTypes) {
+		this.minSize = minSize;
+		this.level = level;
+		this.contentTypes = contentTypes;
+		this.deflaters = new FastThreadLocal<ArrayDeque<Deflater>>() {
+			@Override
+			protected ArrayDeque<Deflater> initialValue() {
+				return new ArrayDeque<>(MAX_POOLED_DEFLATERS);
+			}
+		};
+	}
+
+	/**
+	 * @param minSize the body size in bytes below which responses are sent uncompressed
+	 */
+	public static <I> Compression<I> gzip(int minSize) {
+		return new Compression<>(minSize, Deflater.DEFAULT_COMPRESSION, DEFAULT_CONTENT_TYPES);
+	}
+
+	/**
+	 * @return compression with the given deflate level, from 1 (fastest) to 9 (smallest)
+	 */
+	public Compression<I> level(int newLevel) {
+		return new Compression<>(minSize, newLevel, contentTypes);
+	}
+
+	/**
+	 * @param allowed content types to compress, matched as a prefix ("text/") or suffix ("+json") of the Content-Type
+	 */
+	public Compression<I> contentTypes(String... allowed) {
+		return new Compression<>(minSize, level, Collections.unmodifiableList(Arrays.asList(allowed)));
+	}
+
+	public Route<I, ByteBuf> compressed(Renderer<I> renderer) {
+		return (params, request, response) -> {
+			response.addHeader(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+			Observable<ByteBuf> body = renderer.render(params, request, response);
+			if (!acceptsGzip(request.getHeader(HttpHeaderNames.ACCEPT_ENCODING)) || response.containsHeader(HttpHeaderNames.CONTENT_ENCODING)) {
+				return response.write(body);
+			}
+			return Observable.create(subscriber -> new Head(response, subscriber).subscribeTo(body));
+		};
+	}
+
+	/**
+	 * Checks whether an Accept-Encoding header value allows gzip, honouring q-values.
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		float gzip = -1;
+		float any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase(Locale.ROOT);
+			float q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						q = Float.parseFloat(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if ("gzip".equals(name) || "x-gzip".equals(name)) {
+				gzip = q;
+			} else if ("*".equals(name)) {
+				any = q;
+			}
+		}
+		return gzip >= 0 ? gzip > 0 : any > 0;
+	}
+
+	private boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		int parameters = contentType.indexOf(';');
+		String type = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim().toLowerCase(Locale.ROOT);
+		for (String allowed : contentTypes) {
+			if (type.startsWith(allowed) || type.endsWith(allowed)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Deflater borrowDeflater() {
+		Deflater deflater = deflaters.get().poll();
+		return deflater != null ? deflater : new Deflater(level, true);
+	}
+
+	private void returnDeflater(Deflater deflater) {
+		deflater.reset();
+		ArrayDeque<Deflater> pool = deflaters.get();
+		if (pool.size() < MAX_POOLED_DEFLATERS) {
+			pool.offer(deflater);
+		} else {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Holds back the start of a body until it is known whether it reaches the minimum size,
+	 * then writes the whole body, compressed or not.
+	 */
+	private class Head {
+		private final HttpServerResponse<ByteBuf> response;
+		private final Subscriber<? super Void> subscriber;
+		private final List<ByteBuf> chunks = new ArrayList<>(2);
+		private final UnicastSubject<ByteBuf> rest = UnicastSubject.create();
+		private int size;
+		private boolean decided;
+
+		private Head(HttpServerResponse<ByteBuf> response, Subscriber<? super Void> subscriber) {
+			this.response = response;
+			this.subscriber = subscriber;
+		}
+
+		private void subscribeTo(Observable<ByteBuf> body) {
+			subscriber.add(Subscriptions.create(this::releaseUndecided));
+			subscriber.add(body.subscribe(
+				chunk -> {
+					if (decided) {
+						rest.onNext(chunk);
+					} else {
+						chunks.add(chunk);
+						size += chunk.readableBytes();
+						if (size >= minSize) {
+							decide();
+						}
+					}
+				},
+				error -> {
+					if (decided) {
+						rest.onError(error);
+					} else {
+						releaseUndecided();
+						subscriber.onError(error);
+					}
+				},
+				() -> {
+					if (!decided) {
+						decide();
+					}
+					rest.onCompleted();
+				}
+			));
+		}
+
+		private void decide() {
+			decided = true;
+			Observable<ByteBuf> body = Observable.from(new ArrayList<>(chunks)).concatWith(rest);
+			chunks.clear();
+			if (size >= minSize && isCompressible(response.getHeader(HttpHeaderNames.CONTENT_TYPE))) {
+				response.removeHeader(HttpHeaderNames.CONTENT_LENGTH);
+				response.setHeader(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+				body = gzip(body, response.unsafeNettyChannel().alloc());
+			}
+			response.write(body).subscribe(subscriber);
+		}
+
+		private void releaseUndecided() {
+			if (!decided) {
+				chunks.forEach(ByteBuf::release);
+				chunks.clear();
+			}
+		}
+	}
+
+	private Observable<ByteBuf> gzip(Observable<ByteBuf> body, ByteBufAllocator allocator) {
+		return Observable.defer(() -> {
+			GzipStream stream = new GzipStream(borrowDeflater(), allocator);
+			AtomicBoolean done = new AtomicBoolean();
+			return Observable.just(stream.header())
+				.concatWith(body.map(stream::compress))
+				.concatWith(Observable.fromCallable(stream::finish))
+				// pooled only once the stream is over, compress may still be running when the client goes away
+				.doOnTerminate(() -> {
+					if (done.compareAndSet(false, true)) {
+						returnDeflater(stream.deflater);
+					}
+				})
+				.doOnUnsubscribe(() -> {
+					if (done.compareAndSet(false, true)) {
+						stream.deflater.end();
+					}
+				});
+		});
+	}
+
+	private static class GzipStream {
+		private final Deflater deflater;
+		private final ByteBufAllocator allocator;
+		private final CRC32 crc = new CRC32();
+
+		private GzipStream(Deflater deflater, ByteBufAllocator allocator) {
+			this.deflater = deflater;
+			this.allocator = allocator;
+		}
+
+		private ByteBuf header() {
+			return allocator.buffer(GZIP_HEADER.length).writeBytes(GZIP_HEADER);
+		}
+
+		private ByteBuf compress(ByteBuf chunk) {
+			byte[] input = new byte[chunk.readableBytes()];
+			chunk.readBytes(input);
+			chunk.release();
+			crc.update(input);
+			deflater.setInput(input);
+			ByteBuf out = allocator.heapBuffer(input.length / 2 + 64);
+			int written;
+			do {
+				// a full output buffer may hold back more flushed output
+				written = deflate(out);
+			} while (written > 0 && !out.isWritable());
+			return out;
+		}
+
+		private ByteBuf finish() {
+			deflater.finish();
+			ByteBuf out = allocator.heapBuffer(64);
+			while (!deflater.finished()) {
+				deflate(out);
+			}
+			return out.writeIntLE((int) crc.getValue()).writeIntLE((int) deflater.getBytesRead());
+		}
+
+		private int deflate(ByteBuf out) {
+			out.ensureWritable(64);
+			int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes(), Deflater.SYNC_FLUSH);
+			out.writerIndex(out.writerIndex() + written);
+			return written;
+		}
+	}
+}
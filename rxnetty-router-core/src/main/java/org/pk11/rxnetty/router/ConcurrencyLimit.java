@@ -0,0 +1,156 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import rx.Observable;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A filter bounding the number of requests a route handles at once, so a slow downstream
+ * cannot pile up work on the event loops. Requests over the limit are rejected straight away.
+ *
+ * A request counts until the Observable returned by the route terminates or is unsubscribed.
+ * The limit is either fixed, or adapted to the observed latency (additive increase, multiplicative decrease).
+ *
+ * Example:
+ *
+ * {@code
+ *	ConcurrencyLimit<ByteBuf, ByteBuf> limit = ConcurrencyLimit.aimd(20, 1, 200, Duration.ofMillis(250));
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.GET("/reports/:id", limit.applyTo(reportHandler));
+ * }
+ */
+public final class ConcurrencyLimit<I, O> implements Filter<I, O> {
+
+	private static final AsciiString ZERO = AsciiString.of("0");
+	private static final double BACKOFF = 0.9;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger limit;
+	private final int minLimit;
+	private final int maxLimit;
+	private final long latencyThresholdNanos;
+	private final HttpResponseStatus rejectStatus;
+	private final AsciiString retryAfter;
+
+	private ConcurrencyLimit(
+		int initialLimit,
+		int minLimit,
+		int maxLimit,
+		long latencyThresholdNanos,
+		HttpResponseStatus rejectStatus,
+		AsciiString retryAfter
+	) {
+		if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+			throw new IllegalArgumentException(
+				String.format("Limits must satisfy 1 <= min (%d) <= initial (%d) <= max (%d)", minLimit, initialLimit, maxLimit)
+			);
+		}
+		this.limit = new AtomicInteger(initialLimit);
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.latencyThresholdNanos = latencyThresholdNanos;
+		this.rejectStatus = rejectStatus;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return a filter allowing at most the given number of concurrent requests
+	 */
+	public static <I, O> ConcurrencyLimit<I, O> fixed(int limit) {
+		return new ConcurrencyLimit<>(limit, limit, limit, Long.MAX_VALUE, HttpResponseStatus.SERVICE_UNAVAILABLE, null);
+	}
+
+	/**
+	 * @return a filter whose limit grows by one while requests complete within the latency threshold,
+	 * and shrinks by 10% when one is slower or fails
+	 */
+	public static <I, O> ConcurrencyLimit<I, O> aimd(int initialLimit, int minLimit, int maxLimit, Duration latencyThreshold) {
+		return new ConcurrencyLimit<>(
+			initialLimit, minLimit, maxLimit, latencyThreshold.toNanos(), HttpResponseStatus.SERVICE_UNAVAILABLE, null
+		);
+	}
+
+	/**
+	 * @return this limit rejecting requests with the given status, typically 429 Too Many Requests
+	 * instead of the default 503 Service Unavailable, and an optional Retry-After
+	 */
+	public ConcurrencyLimit<I, O> rejectWith(HttpResponseStatus status, Duration retryAfter) {
+		return new ConcurrencyLimit<>(
+			limit.get(),
+			minLimit,
+			maxLimit,
+			latencyThresholdNanos,
+			status,
+			retryAfter == null ? null : AsciiString.of(Long.toString(retryAfter.getSeconds()))
+		);
+	}
+
+	public int getLimit() {
+		return limit.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	public Observable<Void> filter(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<O> response, Route<I, O> next) {
+		// the permit is taken per subscription, so one is only held while the request is being handled
+		return Observable.defer(() -> {
+			int current;
+			do {
+				current = inFlight.get();
+				if (current >= limit.get()) {
+					return reject(response);
+				}
+			} while (!inFlight.compareAndSet(current, current + 1));
+
+			long start = System.nanoTime();
+			AtomicBoolean released = new AtomicBoolean();
+			Observable<Void> handled;
+			try {
+				handled = next.handle(params, request, response);
+			} catch (RuntimeException e) {
+				release(released, start, true);
+				throw e;
+			}
+			return handled
+				.doOnError(e -> release(released, start, true))
+				.doOnCompleted(() -> release(released, start, false))
+				.doOnUnsubscribe(() -> release(released, start, false));
+		});
+	}
+
+	private Observable<Void> reject(HttpServerResponse<O> response) {
+		response.setStatus(rejectStatus);
+		response.setHeader(HttpHeaderNames.CONTENT_LENGTH, ZERO);
+		if (retryAfter != null) {
+			response.setHeader(HttpHeaderNames.RETRY_AFTER, retryAfter);
+		}
+		return response.sendHeaders();
+	}
+
+	private void release(AtomicBoolean released, long start, boolean failed) {
+		if (!released.compareAndSet(false, true)) {
+			return;
+		}
+		int wasInFlight = inFlight.getAndDecrement();
+		if (minLimit == maxLimit) {
+			return;
+		}
+		if (failed || System.nanoTime() - start > latencyThresholdNanos) {
+			limit.updateAndGet(current -> Math.max(minLimit, (int) (current * BACKOFF)));
+		} else if (wasInFlight * 2 >= limit.get()) {
+			// only grow while the limit is actually being used
+			limit.updateAndGet(current -> Math.min(maxLimit, current + 1));
+		}
+	}
+}
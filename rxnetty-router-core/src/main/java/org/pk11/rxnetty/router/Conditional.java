@@ -0,0 +1,281 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Helpers for answering conditional requests (If-None-Match, If-Modified-Since)
+ * with 304 Not Modified before a response body is produced.
+ *
+ * Example:
+ *
+ * {@code
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.GET("/articles/:id", withETag(
+ *			(params, request) -> articles.version(params.get("id")),
+ *			(params, request, response) -> {
+ *				response.setStatus(HttpResponseStatus.OK);
+ *				return response.writeString(just(articles.render(params.get("id"))));
+ *			}));
+ * }
+ */
+public final class Conditional {
+
+	private Conditional() {
+	}
+
+	private static final String[] MONTHS =
+		{"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+	/**
+	 * Wraps a Route so that it only runs when the client does not already hold the current
+	 * representation. The ETag is set on every response the route produces.
+	 * A matching If-None-Match answers GET and HEAD with 304 Not Modified and any other method
+	 * with 412 Precondition Failed, as required by RFC 7232.
+	 *
+	 * @param etag computes the quoted entity tag of the current representation, without producing it
+	 * @param route the route producing the representation
+	 */
+	public static <I, O> Route<I, O> withETag(
+		BiFunction<Map<String, String>, HttpServerRequest<I>, ? extends CharSequence> etag,
+		Route<I, O> route
+	) {
+		return (params, request, response) -> {
+			CharSequence current = etag.apply(params, request);
+			if (current == null) {
+				return route.handle(params, request, response);
+			}
+			response.setHeader(HttpHeaderNames.ETAG, current);
+			if (matches(request.getHeader(HttpHeaderNames.IF_NONE_MATCH), current)) {
+				HttpMethod method = request.getHttpMethod();
+				response.setStatus(HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method)
+					? HttpResponseStatus.NOT_MODIFIED
+					: HttpResponseStatus.PRECONDITION_FAILED);
+				return response.sendHeaders();
+			}
+			return route.handle(params, request, response);
+		};
+	}
+
+	/**
+	 * Checks whether the client's cached copy is still current. If-None-Match takes precedence
+	 * over If-Modified-Since, as required by RFC 7232.
+	 *
+	 * @param etag quoted entity tag of the current representation, may be null
+	 * @param lastModified last modification time in milliseconds, or -1 if unknown
+	 */
+	public static boolean isNotModified(HttpServerRequest<?> request, CharSequence etag, long lastModified) {
+		String ifNoneMatch = request.getHeader(HttpHeaderNames.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			return etag != null && matches(ifNoneMatch, etag);
+		}
+		if (lastModified < 0) {
+			return false;
+		}
+		long ifModifiedSince = parseDate(request.getHeader(HttpHeaderNames.IF_MODIFIED_SINCE));
+		// only compare up to the second because HTTP dates do not have milliseconds
+		return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * Parses an HTTP date as sent in conditional request headers, without allocating. Besides the
+	 * IMF-fixdate "Sun, 06 Nov 1994 08:49:37 GMT", the obsolete RFC 850 "Sunday, 06-Nov-94 08:49:37 GMT"
+	 * and asctime "Sun Nov  6 08:49:37 1994" formats are accepted, as required by RFC 7231.
+	 * Two-digit RFC 850 years before 70 are taken to be in the 2000s.
+	 *
+	 * @param value header value, may be null
+	 * @return the time in milliseconds, or -1 if the value is missing or not an HTTP date
+	 */
+	public static long parseDate(CharSequence value) {
+		if (value == null) {
+			return -1;
+		}
+		int length = value.length();
+		if (length == 29 && value.charAt(3) == ',') {
+			return parseDate(value, 4, ' ', 2, 4, ' ', 17);
+		}
+		if (length == 24 && value.charAt(3) == ' ') {
+			return parseAsctime(value);
+		}
+		int comma = length - 24;
+		if (comma > 5 && value.charAt(comma) == ',') {
+			return parseDate(value, comma + 1, '-', 2, 2, ' ', comma + 12);
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses " dd" day, month and year separated by the given character, then " HH:mm:ss GMT".
+	 */
+	private static long parseDate(CharSequence value, int offset, char separator, int dayLength, int yearLength,
+		char timeSeparator, int timeOffset) {
+		int monthOffset = offset + 1 + dayLength + 1;
+		int yearOffset = monthOffset + 4;
+		if (value.charAt(offset) != ' ' || value.charAt(monthOffset - 1) != separator
+			|| value.charAt(yearOffset - 1) != separator || value.charAt(timeOffset - 1) != timeSeparator
+			|| value.charAt(timeOffset + 8) != ' ' || value.charAt(timeOffset + 9) != 'G'
+			|| value.charAt(timeOffset + 10) != 'M' || value.charAt(timeOffset + 11) != 'T') {
+			return -1;
+		}
+		int year = digits(value, yearOffset, yearLength);
+		if (yearLength == 2 && year >= 0) {
+			year += year < 70 ? 2000 : 1900;
+		}
+		return toMillis(year, month(value, monthOffset), digits(value, offset + 1, dayLength), value, timeOffset);
+	}
+
+	private static long parseAsctime(CharSequence value) {
+		if (value.charAt(7) != ' ' || value.charAt(10) != ' ' || value.charAt(19) != ' ') {
+			return -1;
+		}
+		// the day is padded with a space rather than a zero
+		int day = value.charAt(8) == ' ' ? digits(value, 9, 1) : digits(value, 8, 2);
+		return toMillis(digits(value, 20, 4), month(value, 4), day, value, 11);
+	}
+
+	/**
+	 * @param timeOffset where "HH:mm:ss" starts in the value
+	 */
+	private static long toMillis(int year, int month, int day, CharSequence value, int timeOffset) {
+		if (value.charAt(timeOffset + 2) != ':' || value.charAt(timeOffset + 5) != ':') {
+			return -1;
+		}
+		int hour = digits(value, timeOffset, 2);
+		int minute = digits(value, timeOffset + 3, 2);
+		int second = digits(value, timeOffset + 6, 2);
+		if (day < 1 || day > 31 || month < 0 || year < 0 || hour < 0 || hour > 23
+			|| minute < 0 || minute > 59 || second < 0 || second > 60) {
+			return -1;
+		}
+		long days = daysFromCivil(year, month + 1, day);
+		return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L;
+	}
+
+	/**
+	 * Matches an If-None-Match header value against an entity tag using the weak comparison function.
+	 *
+	 * @param ifNoneMatch If-None-Match header value, may be null
+	 * @param etag quoted entity tag, optionally prefixed with W/
+	 */
+	public static boolean matches(String ifNoneMatch, CharSequence etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		int tagStart = opaqueTagStart(etag, 0);
+		int tagLength = etag.length() - tagStart;
+		int length = ifNoneMatch.length();
+		int i = 0;
+		while (i < length) {
+			char c = ifNoneMatch.charAt(i);
+			if (c == ' ' || c == '\t' || c == ',') {
+				i++;
+				continue;
+			}
+			if (c == '*') {
+				return true;
+			}
+			int start = opaqueTagStart(ifNoneMatch, i);
+			int end = ifNoneMatch.indexOf('"', start + 1);
+			if (start >= length || ifNoneMatch.charAt(start) != '"' || end < 0) {
+				return false;
+			}
+			if (end + 1 - start == tagLength && regionMatches(ifNoneMatch, start, etag, tagStart, tagLength)) {
+				return true;
+			}
+			i = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * @return a strong, quoted entity tag derived from a hash of the given content
+	 */
+	public static String strongETag(byte[] content) {
+		MessageDigest digest = sha256();
+		digest.update(content);
+		return quote(digest.digest());
+	}
+
+	/**
+	 * @return a quoted entity tag for the given digest bytes
+	 */
+	public static String quote(byte[] digest) {
+		byte[] tag = new byte[Math.min(digest.length, 16)];
+		System.arraycopy(digest, 0, tag, 0, tag.length);
+		return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(tag) + '"';
+	}
+
+	/**
+	 * @return the weak form of the given entity tag
+	 */
+	public static String weak(CharSequence etag) {
+		return opaqueTagStart(etag, 0) > 0 ? etag.toString() : "W/" + etag;
+	}
+
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static int opaqueTagStart(CharSequence etag, int from) {
+		if (etag.length() > from + 1 && etag.charAt(from) == 'W' && etag.charAt(from + 1) == '/') {
+			return from + 2;
+		}
+		return from;
+	}
+
+	private static int digits(CharSequence value, int offset, int length) {
+		int result = 0;
+		for (int i = offset; i < offset + length; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	private static int month(CharSequence value, int offset) {
+		for (int i = 0; i < MONTHS.length; i++) {
+			String month = MONTHS[i];
+			if (value.charAt(offset) == month.charAt(0)
+				&& value.charAt(offset + 1) == month.charAt(1)
+				&& value.charAt(offset + 2) == month.charAt(2)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// days since 1970-01-01 in the proleptic Gregorian calendar
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	private static boolean regionMatches(CharSequence a, int aStart, CharSequence b, int bStart, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a.charAt(aStart + i) != b.charAt(bStart + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
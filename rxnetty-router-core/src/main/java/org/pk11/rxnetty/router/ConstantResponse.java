@@ -0,0 +1,81 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import io.reactivex.netty.protocol.http.server.RequestHandler;
+import rx.Observable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A handler always answering with the same status, headers and body, such as health checks or robots.txt.
+ * Everything is encoded once: the body sits in a direct buffer owned by the handler, and each response writes a {@link ByteBuf#retainedDuplicate()} of it.
+ *
+ * Example:
+ *
+ * {@code
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.GET("/health", ConstantResponse.ok("text/plain", "OK"))
+ *		.GET("/robots.txt", ConstantResponse.ok("text/plain", "User-agent: *\nDisallow: /\n")
+ *			.withHeader("Cache-Control", "max-age=86400"));
+ * }
+ */
+public final class ConstantResponse<I> implements RequestHandler<I, ByteBuf> {
+
+	private final HttpResponseStatus status;
+	private final AsciiString[] names;
+	private final AsciiString[] values;
+	private final ByteBuf body;
+
+	private ConstantResponse(HttpResponseStatus status, AsciiString[] names, AsciiString[] values, ByteBuf body) {
+		this.status = status;
+		this.names = names;
+		this.values = values;
+		this.body = body;
+	}
+
+	public static <I> ConstantResponse<I> ok(CharSequence contentType, String body) {
+		return of(HttpResponseStatus.OK, contentType, body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return a plain text 404, to use as a router's notFound handler
+	 */
+	public static <I> ConstantResponse<I> notFound() {
+		return of(HttpResponseStatus.NOT_FOUND, "text/plain", "Not Found".getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static <I> ConstantResponse<I> of(HttpResponseStatus status, CharSequence contentType, byte[] body) {
+		// owned by the handler for its whole life, each write releases its own retained duplicate
+		ByteBuf content = Unpooled.directBuffer(body.length, body.length).writeBytes(body);
+		ConstantResponse<I> response = new ConstantResponse<I>(status, new AsciiString[0], new AsciiString[0], content)
+			.withHeader(HttpHeaderNames.CONTENT_LENGTH, Integer.toString(body.length));
+		return contentType == null ? response : response.withHeader(HttpHeaderNames.CONTENT_TYPE, contentType);
+	}
+
+	/**
+	 * @return a response with the given header added, sharing the encoded body
+	 */
+	public ConstantResponse<I> withHeader(CharSequence name, CharSequence value) {
+		AsciiString[] newNames = Arrays.copyOf(names, names.length + 1);
+		AsciiString[] newValues = Arrays.copyOf(values, values.length + 1);
+		newNames[names.length] = AsciiString.of(name);
+		newValues[values.length] = AsciiString.of(value);
+		return new ConstantResponse<>(status, newNames, newValues, body);
+	}
+
+	@Override
+	public Observable<Void> handle(HttpServerRequest<I> request, HttpServerResponse<ByteBuf> response) {
+		response.setStatus(status);
+		for (int i = 0; i < names.length; i++) {
+			response.setHeader(names[i], values[i]);
+		}
+		return response.write(Observable.fromCallable(body::retainedDuplicate));
+	}
+}
@@ -0,0 +1,145 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A filter giving routes a deadline. When it passes, the route's Observable is unsubscribed, cancelling
+ * the work it started, and the client gets 504 Gateway Timeout if no headers were sent yet.
+ *
+ * The deadline of a request is kept while its route runs, so handlers can pass the remaining time on to
+ * their own clients with {@link #remaining(HttpServerRequest)}, for example in the {@link #HEADER} header.
+ * A deadline in that header on the inbound request is only honoured, when sooner, by a filter that
+ * {@link #trustInbound() trusts} the hop in front of it; clients could otherwise shorten or extend it.
+ *
+ * Example:
+ *
+ * {@code
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.filter("/search", Deadline.of(Duration.ofSeconds(2)))
+ *		.GET("/search", (request, response) ->
+ *			searchClient.query(request.getUri(), Deadline.remaining(request))...);
+ * }
+ */
+public final class Deadline<I, O> implements Filter<I, O> {
+
+	public static final AsciiString HEADER = AsciiString.of("X-Request-Deadline");
+
+	private static final AsciiString ZERO = AsciiString.of("0");
+
+	// the deadlines of the requests being handled, in epoch milliseconds
+	private static final Map<HttpServerRequest<?>, Long> deadlines = new ConcurrentHashMap<>();
+
+	private final long timeoutMillis;
+	private final Scheduler scheduler;
+	private final boolean trustInbound;
+
+	private Deadline(long timeoutMillis, Scheduler scheduler, boolean trustInbound) {
+		this.timeoutMillis = timeoutMillis;
+		this.scheduler = scheduler;
+		this.trustInbound = trustInbound;
+	}
+
+	public static <I, O> Deadline<I, O> of(Duration timeout) {
+		return of(timeout, Schedulers.computation());
+	}
+
+	/**
+	 * @param scheduler the scheduler timing the deadline
+	 */
+	public static <I, O> Deadline<I, O> of(Duration timeout, Scheduler scheduler) {
+		return new Deadline<>(timeout.toMillis(), scheduler, false);
+	}
+
+	/**
+	 * @return this deadline also honouring a sooner deadline in the {@link #HEADER} header of the inbound
+	 * request, for servers only reached through a proxy or service that sets it
+	 */
+	public Deadline<I, O> trustInbound() {
+		return new Deadline<>(timeoutMillis, scheduler, true);
+	}
+
+	/**
+	 * @return the time left until the deadline of the request, possibly negative, or null if it has none
+	 */
+	public static Duration remaining(HttpServerRequest<?> request) {
+		Long deadline = deadlines.get(request);
+		return deadline == null ? null : Duration.ofMillis(deadline - System.currentTimeMillis());
+	}
+
+	@Override
+	public Observable<Void> filter(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<O> response, Route<I, O> next) {
+		return Observable.defer(() -> {
+			long now = System.currentTimeMillis();
+			long deadline = now + timeoutMillis;
+			if (trustInbound) {
+				long inbound = inboundDeadlineOf(request);
+				if (inbound >= 0 && inbound < deadline) {
+					deadline = inbound;
+				}
+			}
+			// an enclosing deadline that is sooner still applies
+			Long enclosing = deadlines.get(request);
+			if (enclosing != null && enclosing < deadline) {
+				deadline = enclosing;
+			}
+			deadlines.put(request, deadline);
+			AtomicBoolean restored = new AtomicBoolean();
+			Action0 restore = () -> {
+				if (!restored.compareAndSet(false, true)) {
+					return;
+				}
+				if (enclosing != null) {
+					deadlines.put(request, enclosing);
+				} else {
+					deadlines.remove(request);
+				}
+			};
+			return next.handle(params, request, response)
+				.timeout(Math.max(0, deadline - now), TimeUnit.MILLISECONDS, Observable.defer(() -> timedOut(response)), scheduler)
+				.doAfterTerminate(restore)
+				.doOnUnsubscribe(restore);
+		});
+	}
+
+	private static Observable<Void> timedOut(HttpServerResponse<?> response) {
+		// both are ignored if the headers were already sent, which sendHeaders then reports
+		response.setStatus(HttpResponseStatus.GATEWAY_TIMEOUT);
+		response.setHeader(HttpHeaderNames.CONTENT_LENGTH, ZERO);
+		return response.sendHeaders()
+			.onErrorResumeNext(e -> {
+				if (!(e instanceof IllegalStateException)) {
+					return Observable.error(e);
+				}
+				TimeoutException timeout = new TimeoutException("Deadline passed after the response was started");
+				timeout.initCause(e);
+				return Observable.error(timeout);
+			});
+	}
+
+	private static long inboundDeadlineOf(HttpServerRequest<?> request) {
+		String value = request.getHeader(HEADER);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package org.pk11.rxnetty.router;
 
+import io.netty.handler.codec.http.HttpMethod;
 import io.reactivex.netty.protocol.http.server.HttpServerRequest;
 import io.reactivex.netty.protocol.http.server.HttpServerResponse;
 import io.reactivex.netty.protocol.http.server.RequestHandler;
@@ -28,9 +29,11 @@ import rx.Observable;
 public class Dispatch<I, O> implements RequestHandler<I, O> {
 
 	private final Router<I, O> r;
+	private final MissCounter misses;
 
-	private Dispatch(Router<I, O> r) {
+	private Dispatch(Router<I, O> r, MissCounter misses) {
 		this.r = r;
+		this.misses = misses;
 	}
 
 	/*
@@ -39,7 +42,14 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
 	 * @param user supplied router
 	 */
 	public static <I, O> Dispatch<I, O> using(Router<I, O> r) {
-		return new Dispatch<>(r);
+		return new Dispatch<>(r, null);
+	}
+
+	/**
+	 * @param counter records the paths of requests that matched no route
+	 */
+	public Dispatch<I, O> countingMisses(MissCounter counter) {
+		return new Dispatch<>(r, counter);
 	}
 
 	/**
@@ -51,12 +61,33 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
 		return route;
 	}
 
-	@Override
-	public Observable<Void> handle(HttpServerRequest<I> request, HttpServerResponse<O> response) {
-		Routed<RequestHandler<I, O>> routed = r.route(request.getHttpMethod(), request.getDecodedPath());
+	/**
+	 * Hands a request to the target of a route that has already been matched,
+	 * for dispatchers that need to inspect the match first.
+	 */
+	public static <I, O> Observable<Void> dispatch(Routed<RequestHandler<I, O>> routed, HttpServerRequest<I> request, HttpServerResponse<O> response) {
 		if (routed.target() instanceof Route) {
 			return ((Route<I, O>) routed.target()).handle(routed.params(), request, response);
 		} else
 			return routed.target().handle(request, response);
 	}
+
+	/**
+	 * Matches a path the way requests are dispatched, for dispatchers that need to inspect the match first.
+	 *
+	 * @param misses records the path if it matches no route, may be null
+	 */
+	public static <I, O> Routed<RequestHandler<I, O>> match(Router<I, O> r, HttpMethod method, String path, MissCounter misses) {
+		// paths no route can match skip the pattern lists, which scanners would otherwise walk for every request
+		Routed<RequestHandler<I, O>> routed = r.canMatch(path) ? r.route(method, path) : r.miss();
+		if (misses != null && (routed == null || routed.notFound())) {
+			misses.record(path);
+		}
+		return routed;
+	}
+
+	@Override
+	public Observable<Void> handle(HttpServerRequest<I> request, HttpServerResponse<O> response) {
+		return dispatch(match(r, request.getHttpMethod(), request.getDecodedPath(), misses), request, response);
+	}
 }
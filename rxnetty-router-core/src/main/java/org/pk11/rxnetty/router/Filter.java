@@ -0,0 +1,38 @@
+package org.pk11.rxnetty.router;
+
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import io.reactivex.netty.protocol.http.server.RequestHandler;
+import rx.Observable;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Cross-cutting behaviour around routes, such as authentication or logging.
+ * A filter either handles the request itself or passes it on to the next filter or the route.
+ *
+ * Filters are attached globally or per prefix with {@link Router#filter}, or per route with {@link #applyTo},
+ * and composed with the route when it is registered.
+ */
+@FunctionalInterface
+public interface Filter<I, O> {
+
+	Observable<Void> filter(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<O> response, Route<I, O> next);
+
+	/**
+	 * Called once for each route the filter is composed with, so that a filter can keep state per route pattern.
+	 *
+	 * @return the filter to use for routes registered with the given path pattern
+	 */
+	default Filter<I, O> forPath(String path) {
+		return this;
+	}
+
+	/**
+	 * @return the given handler with this filter in front of it
+	 */
+	default RequestHandler<I, O> applyTo(RequestHandler<I, O> handler) {
+		return FilteredRoute.of(handler, Collections.singletonList(this));
+	}
+}
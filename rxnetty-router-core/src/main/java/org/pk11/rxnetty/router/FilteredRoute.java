@@ -0,0 +1,61 @@
+package org.pk11.rxnetty.router;
+
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import io.reactivex.netty.protocol.http.server.RequestHandler;
+import rx.Observable;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A route composed once with its filters, so a request only runs the filters that apply to it.
+ */
+public final class FilteredRoute<I, O> implements Route<I, O> {
+
+	private final RequestHandler<I, O> target;
+	private final Route<I, O> chain;
+
+	private FilteredRoute(RequestHandler<I, O> target, Route<I, O> chain) {
+		this.target = target;
+		this.chain = chain;
+	}
+
+	/**
+	 * @param filters the filters to run before the handler, outermost first
+	 * @return the handler itself if there are no filters
+	 */
+	public static <I, O> RequestHandler<I, O> of(RequestHandler<I, O> handler, List<Filter<I, O>> filters) {
+		if (filters.isEmpty()) {
+			return handler;
+		}
+		RequestHandler<I, O> target = handler;
+		Route<I, O> chain;
+		if (handler instanceof FilteredRoute) {
+			target = ((FilteredRoute<I, O>) handler).target;
+			chain = ((FilteredRoute<I, O>) handler).chain;
+		} else if (handler instanceof Route) {
+			chain = (Route<I, O>) handler;
+		} else {
+			chain = (params, request, response) -> handler.handle(request, response);
+		}
+		for (int i = filters.size() - 1; i >= 0; i--) {
+			Filter<I, O> filter = filters.get(i);
+			Route<I, O> next = chain;
+			chain = (params, request, response) -> filter.filter(params, request, response, next);
+		}
+		return new FilteredRoute<>(target, chain);
+	}
+
+	/**
+	 * @return the handler behind the filters
+	 */
+	public RequestHandler<I, O> target() {
+		return target;
+	}
+
+	@Override
+	public Observable<Void> handle(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<O> response) {
+		return chain.handle(params, request, response);
+	}
+}
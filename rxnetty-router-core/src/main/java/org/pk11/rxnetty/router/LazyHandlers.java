@@ -0,0 +1,177 @@
+package org.pk11.rxnetty.router;
+
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import io.reactivex.netty.protocol.http.server.RequestHandler;
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Handlers created on their first request rather than when routes are registered, for routes whose
+ * handlers are costly to build and rarely used. A handler is created off the event loop, on the io
+ * scheduler by default, and once even when its first requests arrive together; those requests wait for
+ * it without blocking. If creating it fails, the waiting requests get the error and the next request
+ * tries again.
+ *
+ * Handlers expected to be busy can be created in the background once the server is up with {@link #warmUp}.
+ *
+ * Example:
+ *
+ * {@code
+ *	LazyHandlers<ByteBuf, ByteBuf> lazy = new LazyHandlers<>();
+ *	HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer(8080).start(using(
+ *		new Router<ByteBuf, ByteBuf>()
+ *			.GET("/reports/:id", lazy.of(() -> new ReportHandler(templates, reportsClient), 10))
+ *			.GET("/admin/audit", lazy.of(AuditHandler::new))
+ *	));
+ *	lazy.warmUp(100).subscribe();
+ * }
+ */
+public final class LazyHandlers<I, O> {
+
+	private final List<Lazy> handlers = new CopyOnWriteArrayList<>();
+	private final AtomicInteger created = new AtomicInteger();
+	private final Scheduler scheduler;
+
+	public LazyHandlers() {
+		this(Schedulers.io());
+	}
+
+	/**
+	 * @param createScheduler where handlers are created
+	 */
+	public LazyHandlers(Scheduler createScheduler) {
+		scheduler = createScheduler;
+	}
+
+	public RequestHandler<I, O> of(Supplier<? extends RequestHandler<I, O>> supplier) {
+		return of(supplier, 0);
+	}
+
+	/**
+	 * @param weight how busy the route is expected to be, busier handlers are warmed up first
+	 */
+	public RequestHandler<I, O> of(Supplier<? extends RequestHandler<I, O>> supplier, int weight) {
+		Lazy handler = new Lazy(supplier, weight);
+		handlers.add(handler);
+		return handler;
+	}
+
+	/**
+	 * Creates the handlers with the highest weight that were not created yet, one after another.
+	 * A handler that fails to be created is skipped and left for its first request.
+	 *
+	 * @param count the number of handlers to create at most
+	 */
+	public Observable<Void> warmUp(int count) {
+		return warmUp(count, Schedulers.io());
+	}
+
+	public Observable<Void> warmUp(int count, Scheduler scheduler) {
+		return Observable.defer(() -> {
+			List<Lazy> pending = new ArrayList<>(handlers);
+			pending.removeIf(Lazy::isCreated);
+			pending.sort(Comparator.comparingInt((Lazy handler) -> handler.weight).reversed());
+			return Observable.from(pending)
+				.take(count)
+				.concatMap(handler -> handler.get()
+					.onErrorResumeNext(Observable.empty()))
+				.ignoreElements()
+				.<Void>map(handler -> null);
+		}).subscribeOn(scheduler);
+	}
+
+	/**
+	 * @return the number of handlers created so far
+	 */
+	public int getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * @return the number of handlers registered, created or not
+	 */
+	public int size() {
+		return handlers.size();
+	}
+
+	private class Lazy implements Route<I, O> {
+		private final int weight;
+		private volatile Supplier<? extends RequestHandler<I, O>> supplier;
+		private volatile RequestHandler<I, O> handler;
+		// the creation requests wait for, until it succeeds or fails
+		private final AtomicReference<Observable<RequestHandler<I, O>>> creation = new AtomicReference<>();
+
+		private Lazy(Supplier<? extends RequestHandler<I, O>> supplier, int weight) {
+			this.supplier = supplier;
+			this.weight = weight;
+		}
+
+		private boolean isCreated() {
+			return handler != null;
+		}
+
+		private Observable<RequestHandler<I, O>> get() {
+			RequestHandler<I, O> current = handler;
+			if (current != null) {
+				return Observable.just(current);
+			}
+			Observable<RequestHandler<I, O>> pending = creation.get();
+			if (pending != null) {
+				return pending;
+			}
+			Observable<RequestHandler<I, O>> create = Observable.fromCallable(this::create)
+				.subscribeOn(scheduler)
+				// cached rather than shared, so a request joining just as it completes still gets the handler
+				.doOnTerminate(() -> creation.set(null))
+				.cache();
+			return creation.compareAndSet(null, create) ? create : get();
+		}
+
+		private RequestHandler<I, O> create() {
+			RequestHandler<I, O> current = handler;
+			if (current != null) {
+				// created by a creation that ended between the check and this one starting
+				return current;
+			}
+			current = Objects.requireNonNull(supplier.get(), "Handler supplier returned null");
+			handler = current;
+			// let whatever the supplier captured be collected
+			supplier = null;
+			created.incrementAndGet();
+			return current;
+		}
+
+		@Override
+		public Observable<Void> handle(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<O> response) {
+			RequestHandler<I, O> target = handler;
+			if (target != null) {
+				return handle(target, params, request, response);
+			}
+			return get().flatMap(created -> handle(created, params, request, response));
+		}
+
+		private Observable<Void> handle(
+			RequestHandler<I, O> target,
+			Map<String, String> params,
+			HttpServerRequest<I> request,
+			HttpServerResponse<O> response
+		) {
+			if (target instanceof Route) {
+				return ((Route<I, O>) target).handle(params, request, response);
+			}
+			return target.handle(request, response);
+		}
+	}
+}
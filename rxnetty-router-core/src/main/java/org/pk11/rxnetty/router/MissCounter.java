@@ -0,0 +1,85 @@
+package org.pk11.rxnetty.router;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the paths that matched no route in a fixed amount of memory, as a count-min sketch.
+ * Estimates never undercount and overcount by little while most misses come from a few paths,
+ * which is what scanners probing for known URLs look like.
+ *
+ * Example:
+ *
+ * {@code
+ *	MissCounter misses = new MissCounter(4096);
+ *	HttpServer.newServer(8080).start(using(router).countingMisses(misses));
+ *	...
+ *	if (misses.estimate("/wp-login.php") > 1000) { ... }
+ * }
+ */
+public final class MissCounter {
+
+	private static final int DEPTH = 4;
+	private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+	private final AtomicLongArray counts;
+	private final int mask;
+	private final AtomicLong total = new AtomicLong();
+
+	/**
+	 * @param width the number of counters per row, rounded up to a power of two
+	 */
+	public MissCounter(int width) {
+		int rounded = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+		this.counts = new AtomicLongArray(DEPTH * rounded);
+		this.mask = rounded - 1;
+	}
+
+	public void record(CharSequence path) {
+		int hash = hash(path);
+		for (int row = 0; row < DEPTH; row++) {
+			counts.incrementAndGet(index(row, hash));
+		}
+		total.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of misses recorded for the path, possibly more but never fewer
+	 */
+	public long estimate(CharSequence path) {
+		int hash = hash(path);
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, counts.get(index(row, hash)));
+		}
+		return estimate;
+	}
+
+	/**
+	 * @return the number of misses recorded for all paths
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+	}
+
+	private int index(int row, int hash) {
+		int h = (hash ^ SEEDS[row]) * 0x5bd1e995;
+		h ^= h >>> 15;
+		return row * (mask + 1) + (h & mask);
+	}
+
+	private static int hash(CharSequence path) {
+		int hash = 0;
+		for (int i = 0; i < path.length(); i++) {
+			hash = 31 * hash + path.charAt(i);
+		}
+		return hash;
+	}
+}
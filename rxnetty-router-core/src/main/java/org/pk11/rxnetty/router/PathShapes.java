@@ -0,0 +1,143 @@
+package org.pk11.rxnetty.router;
+
+import jauter.Pattern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * What the paths of a route table look like: their segment counts, the literal first segments and their length.
+ * Used to turn away paths that no pattern can match without trying the patterns one by one.
+ *
+ * The checks are conservative: a path that is not simple enough to reason about, such as one with empty
+ * segments, is always left to the patterns.
+ */
+final class PathShapes {
+
+	private static final int ANY_LENGTH = Integer.MAX_VALUE;
+
+	final long version;
+	private final boolean[] exactCounts;
+	private final int minCatchAllCount;
+	private final boolean anyFirstSegment;
+	private final int[] firstSegmentHashes;
+	private final String[] firstSegments;
+	private final int maxLength;
+
+	private PathShapes(long version, boolean[] exactCounts, int minCatchAllCount, boolean anyFirstSegment,
+		String[] firstSegments, int maxLength) {
+		this.version = version;
+		this.exactCounts = exactCounts;
+		this.minCatchAllCount = minCatchAllCount;
+		this.anyFirstSegment = anyFirstSegment;
+		this.firstSegments = firstSegments;
+		this.firstSegmentHashes = new int[firstSegments.length];
+		for (int i = 0; i < firstSegments.length; i++) {
+			firstSegmentHashes[i] = firstSegments[i].hashCode();
+		}
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @param maxPathLength a limit on top of the one derived from the patterns
+	 */
+	static PathShapes of(Collection<String> paths, long version, int maxPathLength) {
+		int maxCount = 0;
+		int minCatchAllCount = Integer.MAX_VALUE;
+		boolean anyFirstSegment = false;
+		int maxLength = 0;
+		List<String[]> patterns = new ArrayList<>(paths.size());
+		List<String> firstSegments = new ArrayList<>();
+		for (String path : paths) {
+			Pattern<Object> pattern = new Pattern<>(path, null);
+			String[] tokens = pattern.tokens();
+			patterns.add(tokens);
+			boolean catchAll = tokens.length > 0 && ":*".equals(tokens[tokens.length - 1]);
+			boolean hasParams = false;
+			for (String token : tokens) {
+				hasParams |= token.startsWith(":");
+			}
+			if (catchAll) {
+				minCatchAllCount = Math.min(minCatchAllCount, tokens.length);
+				// jauter does not compare the segments before a catch-all
+				anyFirstSegment = true;
+			} else {
+				maxCount = Math.max(maxCount, tokens.length);
+			}
+			if (tokens.length == 0 || tokens[0].isEmpty() || tokens[0].startsWith(":")) {
+				anyFirstSegment = true;
+			} else if (!firstSegments.contains(tokens[0])) {
+				firstSegments.add(tokens[0]);
+			}
+			maxLength = hasParams ? ANY_LENGTH : Math.max(maxLength, pattern.path().length());
+		}
+		boolean[] exactCounts = new boolean[maxCount + 1];
+		for (String[] tokens : patterns) {
+			if (tokens.length <= maxCount) {
+				exactCounts[tokens.length] = true;
+			}
+		}
+		String[] sorted = firstSegments.toArray(new String[0]);
+		Arrays.sort(sorted, (a, b) -> Integer.compare(a.hashCode(), b.hashCode()));
+		return new PathShapes(version, exactCounts, minCatchAllCount, anyFirstSegment, sorted, Math.min(maxLength, maxPathLength));
+	}
+
+	/**
+	 * @return false only if no pattern can match the path
+	 */
+	boolean canMatch(String path) {
+		int start = path.startsWith("/") ? 1 : 0;
+		int end = path.endsWith("/") ? path.length() - 1 : path.length();
+		if (end <= start) {
+			return true;
+		}
+		if (end - start > maxLength) {
+			return false;
+		}
+
+		int segments = 1;
+		int firstEnd = -1;
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			char c = path.charAt(i);
+			if (c == '/') {
+				if (path.charAt(i - 1) == '/' || i == end - 1) {
+					// empty segments are split the way jauter does, leave them to the patterns
+					return true;
+				}
+				if (firstEnd < 0) {
+					firstEnd = i;
+				}
+				segments++;
+			} else if (firstEnd < 0) {
+				hash = 31 * hash + c;
+			}
+		}
+		if (!(segments < exactCounts.length && exactCounts[segments]) && segments < minCatchAllCount) {
+			return false;
+		}
+		return anyFirstSegment || hasFirstSegment(path, start, firstEnd < 0 ? end : firstEnd, hash);
+	}
+
+	private boolean hasFirstSegment(String path, int start, int end, int hash) {
+		int low = 0;
+		int high = firstSegmentHashes.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (firstSegmentHashes[middle] < hash) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		for (int i = low; i < firstSegmentHashes.length && firstSegmentHashes[i] == hash; i++) {
+			String segment = firstSegments[i];
+			if (segment.length() == end - start && path.regionMatches(start, segment, 0, end - start)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,126 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import rx.Observable;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A filter applying token bucket rate limits per client, checked before the route sets up any work.
+ * Requests over the limit are answered with 429 Too Many Requests and a Retry-After header.
+ *
+ * When added with {@link Router#filter}, each route pattern gets its own buckets; when applied to a single
+ * route, that route does. Buckets of idle clients are evicted, and the number of clients tracked is bounded.
+ *
+ * Example:
+ *
+ * {@code
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.filter("/api", RateLimit.perClient(100, Duration.ofSeconds(1), 20, RateLimit.header("X-Api-Key")))
+ *		.GET("/api/orders", ordersHandler);
+ * }
+ */
+public final class RateLimit<I, O> implements Filter<I, O> {
+
+	private static final int DEFAULT_MAX_CLIENTS = 1 << 20;
+	private static final AsciiString ZERO = AsciiString.of("0");
+
+	/**
+	 * Identifies the client a request is counted against.
+	 */
+	@FunctionalInterface
+	public interface ClientKey {
+		/**
+		 * @return the key of the client, or null to let the request through unlimited
+		 */
+		String of(HttpServerRequest<?> request, HttpServerResponse<?> response);
+	}
+
+	private final TokenBuckets buckets;
+	private final ClientKey clientKey;
+	private final String routeKey;
+
+	private RateLimit(TokenBuckets buckets, ClientKey clientKey, String routeKey) {
+		this.buckets = buckets;
+		this.clientKey = clientKey;
+		this.routeKey = routeKey;
+	}
+
+	/**
+	 * @param permits the number of requests allowed per period on average
+	 * @param burst the number of requests allowed at once
+	 */
+	public static <I, O> RateLimit<I, O> perClient(long permits, Duration period, int burst, ClientKey clientKey) {
+		return perClient(permits, period, burst, clientKey, DEFAULT_MAX_CLIENTS);
+	}
+
+	/**
+	 * @param maxClients the number of clients to track at most; past it, busy clients may be forgotten early
+	 */
+	public static <I, O> RateLimit<I, O> perClient(long permits, Duration period, int burst, ClientKey clientKey, int maxClients) {
+		if (permits < 1 || burst < 1) {
+			throw new IllegalArgumentException("permits and burst must be positive");
+		}
+		return new RateLimit<>(new TokenBuckets(period.toNanos() / permits, burst, maxClients), clientKey, "");
+	}
+
+	/**
+	 * @return a client key reading the given header, or the remote address when the header is missing
+	 */
+	public static ClientKey header(CharSequence name) {
+		ClientKey remoteAddress = remoteAddress();
+		return (request, response) -> {
+			String value = request.getHeader(name);
+			return value != null ? value : remoteAddress.of(request, response);
+		};
+	}
+
+	/**
+	 * @return a client key using the remote IP address of the connection
+	 */
+	public static ClientKey remoteAddress() {
+		return (request, response) -> {
+			SocketAddress address = response.unsafeNettyChannel().remoteAddress();
+			if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+				return ((InetSocketAddress) address).getAddress().getHostAddress();
+			}
+			return address == null ? null : address.toString();
+		};
+	}
+
+	@Override
+	public Filter<I, O> forPath(String path) {
+		return new RateLimit<>(buckets, clientKey, path + ' ');
+	}
+
+	@Override
+	public Observable<Void> filter(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<O> response, Route<I, O> next) {
+		String client = clientKey.of(request, response);
+		if (client == null) {
+			return next.handle(params, request, response);
+		}
+		long wait = buckets.tryAcquire(routeKey.isEmpty() ? client : routeKey + client, System.nanoTime());
+		if (wait == 0) {
+			return next.handle(params, request, response);
+		}
+		response.setStatus(HttpResponseStatus.TOO_MANY_REQUESTS);
+		response.setHeader(HttpHeaderNames.CONTENT_LENGTH, ZERO);
+		response.setHeader(HttpHeaderNames.RETRY_AFTER, Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999))));
+		return response.sendHeaders();
+	}
+
+	/**
+	 * @return the number of clients currently tracked, across routes
+	 */
+	public int getTrackedClients() {
+		return buckets.size();
+	}
+}
@@ -0,0 +1,18 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.buffer.ByteBuf;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import rx.Observable;
+
+import java.util.Map;
+
+/**
+ * A route that returns its body instead of writing it, so that the response can be captured and
+ * replayed, see {@link ResponseCache}. Status and headers are set on the response as usual.
+ */
+@FunctionalInterface
+public interface Renderer<I> {
+
+	Observable<ByteBuf> render(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<ByteBuf> response);
+}
@@ -0,0 +1,179 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import rx.Observable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of whole responses for routes that return the same body for a while, such as catalogs
+ * or configuration. A hit replays the captured status, headers and body without calling the route.
+ *
+ * Responses are keyed by route, method, request URI including its query string and the selected request
+ * headers, and only 200 OK responses are cached, unless they set a cookie or are marked private or no-store.
+ * Entries expire after the time to live. Once the total size of the cached bodies exceeds the byte budget,
+ * the least recently used entries are evicted until a quarter of the budget is free again, so hits never
+ * take a lock and the eviction cost is spread over many inserts.
+ *
+ * Example:
+ *
+ * {@code
+ *	ResponseCache<ByteBuf> cache = new ResponseCache<>(Duration.ofMinutes(5), 64 * 1024 * 1024);
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.GET("/catalog/:section", cache.cached(
+ *			(params, request, response) -> just(catalog.render(params.get("section"))),
+ *			"Accept-Language"));
+ * }
+ */
+public class ResponseCache<I> {
+
+	private final long ttlNanos;
+	private final long maxBytes;
+	private final long lowWaterBytes;
+	private final AtomicInteger routes = new AtomicInteger();
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong totalBytes = new AtomicLong();
+
+	public ResponseCache(Duration ttl, long maxBytes) {
+		this.ttlNanos = ttl.toNanos();
+		this.maxBytes = maxBytes;
+		this.lowWaterBytes = maxBytes - maxBytes / 4;
+	}
+
+	/**
+	 * @param renderer the route producing the response
+	 * @param varyHeaders the request headers the response depends on
+	 */
+	public Route<I, ByteBuf> cached(Renderer<I> renderer, CharSequence... varyHeaders) {
+		String route = Integer.toString(routes.incrementAndGet());
+		// looks up on subscription, so a hit is only retained by a request that is actually written
+		return (params, request, response) -> Observable.defer(() -> {
+			String key = key(route, request, varyHeaders);
+			CapturedResponse hit = get(key, System.nanoTime());
+			if (hit != null) {
+				return hit.replayAndRelease(response);
+			}
+			return CapturedResponse.capture(renderer, params, request, response)
+				.flatMap(captured -> {
+					if (HttpResponseStatus.OK.equals(captured.status()) && captured.isShareable()) {
+						put(key, captured);
+					}
+					return captured.replayAndRelease(response);
+				});
+		});
+	}
+
+	/**
+	 * @return the total size of the cached bodies in bytes
+	 */
+	public long size() {
+		return totalBytes.get();
+	}
+
+	public void clear() {
+		entries.forEach(this::remove);
+	}
+
+	static String key(String route, HttpServerRequest<?> request, CharSequence[] varyHeaders) {
+		StringBuilder key = new StringBuilder(route).append(' ').append(request.getHttpMethod().name())
+			.append(' ').append(request.getUri());
+		for (CharSequence header : varyHeaders) {
+			key.append('\n').append(header).append(':').append(request.getHeader(header, ""));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the cached response retained for the caller, or null
+	 */
+	private CapturedResponse get(String key, long now) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (now - entry.expiresAt >= 0) {
+			remove(key, entry);
+			return null;
+		}
+		entry.lastUsed = now;
+		// null if the entry was evicted and released since it was looked up
+		return entry.response.tryRetain();
+	}
+
+	private void put(String key, CapturedResponse response) {
+		if (response.size() > maxBytes) {
+			return;
+		}
+		long now = System.nanoTime();
+		Entry entry = new Entry(response.retain(), now + ttlNanos, now);
+		totalBytes.addAndGet(response.size());
+		Entry previous = entries.put(key, entry);
+		if (previous != null) {
+			release(previous);
+		}
+		if (totalBytes.get() > maxBytes) {
+			evict();
+		}
+	}
+
+	private synchronized void evict() {
+		if (totalBytes.get() <= maxBytes) {
+			return;
+		}
+		long now = System.nanoTime();
+		// hits keep writing lastUsed, so the sort runs on a snapshot of it
+		List<Used> eldestFirst = new ArrayList<>(entries.size());
+		entries.forEach((key, entry) -> eldestFirst.add(new Used(key, entry, entry.lastUsed - now)));
+		eldestFirst.sort(Comparator.comparingLong(used -> used.lastUsed));
+		for (Used eldest : eldestFirst) {
+			if (totalBytes.get() <= lowWaterBytes) {
+				break;
+			}
+			remove(eldest.key, eldest.entry);
+		}
+	}
+
+	private void remove(String key, Entry entry) {
+		if (entries.remove(key, entry)) {
+			release(entry);
+		}
+	}
+
+	private void release(Entry entry) {
+		totalBytes.addAndGet(-entry.response.size());
+		entry.response.release();
+	}
+
+	private static class Used {
+		private final String key;
+		private final Entry entry;
+		private final long lastUsed;
+
+		private Used(String key, Entry entry, long lastUsed) {
+			this.key = key;
+			this.entry = entry;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private static class Entry {
+		private final CapturedResponse response;
+		private final long expiresAt;
+		private volatile long lastUsed;
+
+		private Entry(CapturedResponse response, long expiresAt, long lastUsed) {
+			this.response = response;
+			this.expiresAt = expiresAt;
+			this.lastUsed = lastUsed;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.reactivex.netty.protocol.http.server.RequestHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Routes described by id, path, methods and precedence, without their handlers. A table can be written
+ * to a compact binary file once, for example at build time, and read back on startup in a single
+ * sequential read instead of being derived from a catalog again. Handlers are bound by route id.
+ * Binding registers every route, so the file is decoded in full when it is read rather than mapped.
+ *
+ * Example:
+ *
+ * {@code
+ *	RouteTable.builder()
+ *		.route("orders.get", "/orders/:id", HttpMethod.GET, HttpMethod.HEAD)
+ *		.routeFirst("orders.search", "/orders/search", HttpMethod.GET)
+ *		.build()
+ *		.write(Paths.get("routes.bin"));
+ *	...
+ *	Router<ByteBuf, ByteBuf> router = RouteTable.read(Paths.get("routes.bin"))
+ *		.bind(new Router<ByteBuf, ByteBuf>(), id -> handlers.get(id));
+ * }
+ */
+public final class RouteTable {
+
+	private static final int MAGIC = 0x52585254;
+	private static final short FORMAT = 1;
+
+	private static final HttpMethod[] METHODS = {
+		HttpMethod.CONNECT, HttpMethod.DELETE, HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS,
+		HttpMethod.PATCH, HttpMethod.POST, HttpMethod.PUT, HttpMethod.TRACE
+	};
+	private static final short ANY = (short) (1 << 15);
+
+	private static final byte FIRST = 0;
+	private static final byte NORMAL = 1;
+	private static final byte LAST = 2;
+
+	// strings are stored with an unsigned 16-bit length
+	private static final int MAX_STRING_BYTES = 0xffff;
+	// precedence, methods and the lengths of an empty id and path
+	private static final int MIN_ROUTE_BYTES = 7;
+
+	private final String[] ids;
+	private final String[] paths;
+	private final short[] methods;
+	private final byte[] precedences;
+
+	private RouteTable(String[] ids, String[] paths, short[] methods, byte[] precedences) {
+		this.ids = ids;
+		this.paths = paths;
+		this.methods = methods;
+		this.precedences = precedences;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @throws IOException if the file cannot be read or is not a route table
+	 */
+	public static RouteTable read(Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		try {
+			if (buffer.remaining() < 10 || buffer.getInt() != MAGIC) {
+				throw new IOException(String.format("'%s' is not a route table", file));
+			}
+			short format = buffer.getShort();
+			if (format != FORMAT) {
+				throw new IOException(String.format("Route table '%s' has unsupported format %d", file, format));
+			}
+			int size = buffer.getInt();
+			if (size < 0 || size > buffer.remaining() / MIN_ROUTE_BYTES) {
+				throw new IOException(String.format("Route table '%s' is corrupt: %d routes in %d bytes", file, size, buffer.remaining()));
+			}
+			String[] ids = new String[size];
+			String[] paths = new String[size];
+			short[] methods = new short[size];
+			byte[] precedences = new byte[size];
+			byte[] scratch = new byte[256];
+			for (int i = 0; i < size; i++) {
+				precedences[i] = buffer.get();
+				methods[i] = buffer.getShort();
+				ids[i] = readString(buffer, scratch);
+				paths[i] = readString(buffer, scratch);
+			}
+			return new RouteTable(ids, paths, methods, precedences);
+		} catch (RuntimeException e) {
+			throw new IOException(String.format("Route table '%s' is corrupt", file), e);
+		}
+	}
+
+	public void write(Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeShort(FORMAT);
+			out.writeInt(ids.length);
+			for (int i = 0; i < ids.length; i++) {
+				out.writeByte(precedences[i]);
+				out.writeShort(methods[i]);
+				writeString(out, ids[i]);
+				writeString(out, paths[i]);
+			}
+		}
+	}
+
+	/**
+	 * Registers every route of the table with the router, in table order.
+	 *
+	 * @param handlers the handler for a route id, called once per route
+	 * @throws IllegalArgumentException if there is no handler for a route id
+	 */
+	public <I, O> Router<I, O> bind(Router<I, O> router, Function<String, ? extends RequestHandler<I, O>> handlers) {
+		for (int i = 0; i < ids.length; i++) {
+			RequestHandler<I, O> handler = handlers.apply(ids[i]);
+			if (handler == null) {
+				throw new IllegalArgumentException(String.format("No handler for route '%s'", ids[i]));
+			}
+			if (methods[i] == ANY) {
+				register(router, null, i, handler);
+				continue;
+			}
+			for (int bit = 0; bit < METHODS.length; bit++) {
+				if ((methods[i] & (1 << bit)) != 0) {
+					register(router, METHODS[bit], i, handler);
+				}
+			}
+		}
+		return router;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public List<String> getIds() {
+		return Arrays.asList(ids);
+	}
+
+	private <I, O> void register(Router<I, O> router, HttpMethod method, int route, RequestHandler<I, O> handler) {
+		String path = paths[route];
+		switch (precedences[route]) {
+			case FIRST:
+				if (method == null) {
+					router.ANY_FIRST(path, handler);
+				} else {
+					router.patternFirst(method, path, handler);
+				}
+				break;
+			case LAST:
+				if (method == null) {
+					router.ANY_LAST(path, handler);
+				} else {
+					router.patternLast(method, path, handler);
+				}
+				break;
+			default:
+				if (method == null) {
+					router.ANY(path, handler);
+				} else {
+					router.pattern(method, path, handler);
+				}
+		}
+	}
+
+	private static String readString(ByteBuffer buffer, byte[] scratch) {
+		int length = buffer.getShort() & 0xffff;
+		byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+		buffer.get(bytes, 0, length);
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	public static final class Builder {
+		private final List<String> ids = new ArrayList<>();
+		private final List<String> paths = new ArrayList<>();
+		private final List<Short> methods = new ArrayList<>();
+		private final List<Byte> precedences = new ArrayList<>();
+
+		private Builder() {
+		}
+
+		/**
+		 * @param methods the methods to route, or none to route any method
+		 * @throws IllegalArgumentException for methods other than the standard ones, or an id or path
+		 * longer than 65535 bytes in UTF-8
+		 */
+		public Builder route(String id, String path, HttpMethod... methods) {
+			return add(NORMAL, id, path, methods);
+		}
+
+		public Builder routeFirst(String id, String path, HttpMethod... methods) {
+			return add(FIRST, id, path, methods);
+		}
+
+		public Builder routeLast(String id, String path, HttpMethod... methods) {
+			return add(LAST, id, path, methods);
+		}
+
+		public RouteTable build() {
+			short[] methodMasks = new short[methods.size()];
+			byte[] precedenceValues = new byte[precedences.size()];
+			for (int i = 0; i < methodMasks.length; i++) {
+				methodMasks[i] = methods.get(i);
+				precedenceValues[i] = precedences.get(i);
+			}
+			return new RouteTable(ids.toArray(new String[0]), paths.toArray(new String[0]), methodMasks, precedenceValues);
+		}
+
+		private Builder add(byte precedence, String id, String path, HttpMethod[] routed) {
+			checkLength("id", id);
+			checkLength("path", path);
+			short mask = routed.length == 0 ? ANY : 0;
+			for (HttpMethod method : routed) {
+				int bit = Arrays.asList(METHODS).indexOf(method);
+				if (bit < 0) {
+					throw new IllegalArgumentException(String.format("Method %s cannot be stored in a route table", method));
+				}
+				mask |= 1 << bit;
+			}
+			ids.add(id);
+			paths.add(path);
+			methods.add(mask);
+			precedences.add(precedence);
+			return this;
+		}
+
+		private static void checkLength(String name, String value) {
+			if (value.getBytes(StandardCharsets.UTF_8).length > MAX_STRING_BYTES) {
+				throw new IllegalArgumentException(
+					String.format("Route %s of %d characters cannot be stored in a route table", name, value.length())
+				);
+			}
+		}
+	}
+}
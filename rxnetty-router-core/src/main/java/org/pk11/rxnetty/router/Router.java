@@ -2,13 +2,21 @@ package org.pk11.rxnetty.router;
 
 import io.netty.handler.codec.http.HttpMethod;
 import io.reactivex.netty.protocol.http.server.RequestHandler;
+import jauter.Routed;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -29,8 +37,28 @@ public class Router<I, O> extends jauter.Router<HttpMethod, RequestHandler<I, O>
 		)
 	);
   private Set<String> paths = new HashSet<>();
+  private final List<PrefixFilter<I, O>> filters = new ArrayList<>();
+  // the filtered routes composed for each path, removed along with their path or target
+  private final Map<String, Map<RequestHandler<I, O>, List<RequestHandler<I, O>>>> filtered = new HashMap<>();
+  private volatile long version;
+  private volatile PathShapes shapes;
+  private volatile Routed<RequestHandler<I, O>> missed;
+  private int maxPathLength = Integer.MAX_VALUE;
+  private CompactRoutes<RequestHandler<I, O>> compact;
+
+  /**
+   * @return a number that changes whenever routes are added or removed,
+   * allowing information derived from the routes to be cached
+   */
+  public long getVersion() {
+    return version;
+  }
 
   public Collection<HttpMethod> getMethodsFor(String path) {
+		if (compact != null) {
+			List<HttpMethod> methods = compact.methodsFor(path);
+			return methods.contains(null) ? ALL_METHODS : methods;
+		}
 		if (anyMethodRouter.route(path) != null) {
 			return ALL_METHODS;
 		}
@@ -40,6 +68,155 @@ public class Router<I, O> extends jauter.Router<HttpMethod, RequestHandler<I, O>
 			.collect(Collectors.toList());
 	}
 
+	/**
+	 * @return whether a route was registered for exactly this method, ignoring routes for any method
+	 */
+	public boolean hasRoute(HttpMethod method, String path) {
+		if (compact != null) {
+			return compact.hasRoute(method, path);
+		}
+		jauter.MethodlessRouter<RequestHandler<I, O>> router = routers.get(method);
+		return router != null && router.route(path) != null;
+	}
+
+	/**
+	 * Checks a path against the shape of the route table: its segment counts, literal first segments and length.
+	 * Much cheaper than {@link #route}, which tries every pattern before falling back to the notFound handler.
+	 *
+	 * @return false if no route can match the path, true if it may
+	 */
+	public boolean canMatch(String path) {
+		PathShapes current = shapes;
+		long now = version;
+		if (current == null || current.version != now) {
+			current = PathShapes.of(new ArrayList<>(getPaths()), now, maxPathLength);
+			shapes = current;
+		}
+		return current.canMatch(path);
+	}
+
+	/**
+	 * Turns away longer paths without trying the routes, for example to cut scanners short.
+	 *
+	 * @param length the longest path accepted, not counting leading and trailing slashes
+	 */
+	public Router<I, O> maxPathLength(int length) {
+		maxPathLength = length;
+		version++;
+		return getThis();
+	}
+
+	/**
+	 * @return the notFound handler as a routing result, or null if there is none
+	 */
+	public Routed<RequestHandler<I, O>> miss() {
+		Routed<RequestHandler<I, O>> current = missed;
+		if (current == null && notFound != null) {
+			current = new Routed<>(notFound, true, Collections.emptyMap());
+			missed = current;
+		}
+		return current;
+	}
+
+	@Override
+	public Router<I, O> notFound(RequestHandler<I, O> target) {
+		Router<I, O> router = super.notFound(target);
+		missed = null;
+		return router;
+	}
+
+	/**
+	 * Stores routes compactly: path segments are interned in a trie kept in packed int arrays, instead of
+	 * a Pattern holding its path and token strings per route plus a copy of the path in {@link #getPaths()}.
+	 * Matching and reverse routing with {@code path(...)} give the same results.
+	 *
+	 * @throws IllegalStateException if routes have already been registered
+	 */
+	public Router<I, O> compact() {
+		if (compact == null) {
+			if (!paths.isEmpty()) {
+				throw new IllegalStateException("Compact storage must be chosen before routes are added");
+			}
+			compact = new CompactRoutes<>();
+		}
+		return getThis();
+	}
+
+	/**
+	 * @return an estimate of the heap taken per route by the route storage, not counting the handlers,
+	 * or -1 when routes are not stored compactly
+	 */
+	public long getEstimatedBytesPerRoute() {
+		return compact == null ? -1 : compact.estimatedBytes() / Math.max(1, compact.size());
+	}
+
+	@Override
+	public Routed<RequestHandler<I, O>> route(HttpMethod method, String path) {
+		if (compact == null) {
+			return super.route(method, path);
+		}
+		Routed<RequestHandler<I, O>> routed = compact.route(method, path);
+		return routed != null ? routed : miss();
+	}
+
+	@Override
+	public String path(HttpMethod method, RequestHandler<I, O> target, Object... params) {
+		return pathOf(target, handler -> compact != null
+			? compact.path(method, handler, params)
+			: super.path(method, handler, params));
+	}
+
+	@Override
+	public String path(RequestHandler<I, O> target, Object... params) {
+		return pathOf(target, handler -> compact != null
+			? compact.path(handler, params)
+			: super.path(handler, params));
+	}
+
+	/**
+	 * Filtered routes are stored as the handler composed with their filters, so a target registered
+	 * behind filters is looked up through the handlers composed for it.
+	 */
+	private String pathOf(RequestHandler<I, O> target, Function<RequestHandler<I, O>, String> lookup) {
+		String path = lookup.apply(target);
+		if (path != null) {
+			return path;
+		}
+		for (Map<RequestHandler<I, O>, List<RequestHandler<I, O>>> forPath : filtered.values()) {
+			for (RequestHandler<I, O> composed : forPath.getOrDefault(target, Collections.emptyList())) {
+				path = lookup.apply(composed);
+				if (path != null) {
+					return path;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a filter in front of all routes registered from now on.
+	 * Filters run in the order they were added, before any filter given to a single route.
+	 *
+	 * @throws IllegalStateException if routes have already been registered
+	 */
+	public Router<I, O> filter(Filter<I, O> filter) {
+		return filter("", filter);
+	}
+
+	/**
+	 * Adds a filter in front of the routes registered from now on whose path is, or is under, the given prefix.
+	 *
+	 * @throws IllegalStateException if routes under the prefix have already been registered
+	 */
+	public Router<I, O> filter(String prefix, Filter<I, O> filter) {
+		PrefixFilter<I, O> prefixFilter = new PrefixFilter<>(prefix, filter);
+		if (getPaths().stream().anyMatch(prefixFilter::appliesTo)) {
+			throw new IllegalStateException(String.format("Filters for '%s' must be added before its routes", prefix));
+		}
+		filters.add(prefixFilter);
+		return getThis();
+	}
+
 	/**
 	 * Allow a Routable to inject routing information into the route at runtime,
    * such as from a data- or plugin-generated routes.
@@ -102,30 +279,108 @@ public class Router<I, O> extends jauter.Router<HttpMethod, RequestHandler<I, O>
 	}
 
 	public Collection<String> getPaths() {
-		return paths;
+		return compact != null ? compact.paths() : paths;
 	}
 
   @Override
   public Router<I, O> pattern(HttpMethod method, String path, RequestHandler<I, O> target) {
+    if (compact != null) {
+      compact.add(CompactRoutes.OTHER, method, path, filtered(path, target));
+      version++;
+      return getThis();
+    }
 	  paths.add(path);
-    return super.pattern(method, path, target);
+    Router<I, O> router = super.pattern(method, path, filtered(path, target));
+    version++;
+    return router;
   }
 
   @Override
   public Router<I, O> patternFirst(HttpMethod method, String path, RequestHandler<I, O> target) {
+    if (compact != null) {
+      compact.add(CompactRoutes.FIRST, method, path, filtered(path, target));
+      version++;
+      return getThis();
+    }
     paths.add(path);
-    return super.patternFirst(method, path, target);
+    Router<I, O> router = super.patternFirst(method, path, filtered(path, target));
+    version++;
+    return router;
   }
 
   @Override
   public Router<I, O> patternLast(HttpMethod method, String path, RequestHandler<I, O> target) {
+    if (compact != null) {
+      compact.add(CompactRoutes.LAST, method, path, filtered(path, target));
+      version++;
+      return getThis();
+    }
     paths.add(path);
-    return super.patternLast(method, path, target);
+    Router<I, O> router = super.patternLast(method, path, filtered(path, target));
+    version++;
+    return router;
   }
 
   @Override
   public void removePath(String path) {
-    paths.remove(path);
-    super.removePath(path);
+    if (compact != null) {
+      compact.removePath(path);
+    } else {
+      paths.remove(path);
+      super.removePath(path);
+    }
+    filtered.remove(path);
+    version++;
+  }
+
+  @Override
+  public void removeTarget(RequestHandler<I, O> target) {
+    Consumer<RequestHandler<I, O>> remove = compact != null ? compact::removeTarget : super::removeTarget;
+    remove.accept(target);
+    Iterator<Map<RequestHandler<I, O>, List<RequestHandler<I, O>>>> forPaths = filtered.values().iterator();
+    while (forPaths.hasNext()) {
+      Map<RequestHandler<I, O>, List<RequestHandler<I, O>>> forPath = forPaths.next();
+      List<RequestHandler<I, O>> composed = forPath.remove(target);
+      if (composed != null) {
+        composed.forEach(remove);
+      }
+      if (forPath.isEmpty()) {
+        forPaths.remove();
+      }
+    }
+    version++;
+  }
+
+  private RequestHandler<I, O> filtered(String path, RequestHandler<I, O> target) {
+    if (filters.isEmpty()) {
+      return target;
+    }
+    List<Filter<I, O>> applicable = filters.stream()
+      .filter(filter -> filter.appliesTo(path))
+      .map(filter -> filter.filter.forPath(path))
+      .collect(Collectors.toList());
+    RequestHandler<I, O> composed = FilteredRoute.of(target, applicable);
+    if (composed != target) {
+      filtered.computeIfAbsent(path, p -> new IdentityHashMap<>())
+        .computeIfAbsent(target, t -> new ArrayList<>())
+        .add(composed);
+    }
+    return composed;
+  }
+
+  private static class PrefixFilter<I, O> {
+    private final String prefix;
+    private final Filter<I, O> filter;
+
+    private PrefixFilter(String prefix, Filter<I, O> filter) {
+      this.prefix = prefix;
+      this.filter = filter;
+    }
+
+    private boolean appliesTo(String path) {
+      return prefix.isEmpty()
+        || path.equals(prefix)
+        || path.startsWith(prefix.endsWith("/") ? prefix : prefix + "/");
+    }
   }
 }
@@ -0,0 +1,172 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.buffer.ByteBuf;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.observables.ConnectableObservable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical requests to a route into a single run of the route, whose response is
+ * captured and replayed to every waiting request. Requests are identical when they have the same route,
+ * method, request URI including its query string and selected request headers, as for {@link ResponseCache}.
+ *
+ * Nothing blocks while waiting. A waiter that goes away only stops its own replay; the route itself is
+ * cancelled once no request waits for it anymore.
+ *
+ * Example:
+ *
+ * {@code
+ *	SingleFlight<ByteBuf> singleFlight = new SingleFlight<>();
+ *	new Router<ByteBuf, ByteBuf>()
+ *		.GET("/prices/:sku", singleFlight.coalesced((params, request, response) -> prices.lookup(params.get("sku"))));
+ * }
+ */
+public class SingleFlight<I> {
+
+	private final AtomicInteger routes = new AtomicInteger();
+	private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * @param renderer the route producing the response
+	 * @param varyHeaders the request headers the response depends on
+	 */
+	public Route<I, ByteBuf> coalesced(Renderer<I> renderer, CharSequence... varyHeaders) {
+		String route = Integer.toString(routes.incrementAndGet());
+		// requests join on subscription: a late one gets the replayed response or starts a new flight of its own
+		return (params, request, response) -> Observable.defer(() -> {
+			String key = ResponseCache.key(route, request, varyHeaders);
+			Func0<Observable<CapturedResponse>> capture = () -> CapturedResponse.capture(renderer, params, request, response);
+			Flight flight = flights.compute(key, (k, running) -> running != null && running.join() ? running : new Flight(k, capture));
+			if (flight.capture != capture) {
+				coalesced.incrementAndGet();
+			}
+			AtomicBoolean left = new AtomicBoolean();
+			Action0 leave = () -> {
+				if (left.compareAndSet(false, true)) {
+					flight.leave();
+				}
+			};
+			return flight.response()
+				.flatMap(captured -> captured.replay(response))
+				.doAfterTerminate(leave)
+				.doOnUnsubscribe(leave);
+		});
+	}
+
+	/**
+	 * @return the number of requests that were answered by another request's run of the route
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the number of routes running for several requests right now
+	 */
+	public int getInFlight() {
+		return flights.size();
+	}
+
+	/**
+	 * One run of a route, shared by the requests waiting for it. Its response is replayed to every waiter,
+	 * including one subscribing after it was emitted, and released once the last waiter is done.
+	 */
+	private class Flight {
+		private final String key;
+		private final Func0<Observable<CapturedResponse>> capture;
+		private final ConnectableObservable<CapturedResponse> response;
+		private int waiters = 1;
+		private boolean closed;
+		private boolean connected;
+		private Subscription connection;
+		private CapturedResponse captured;
+
+		private Flight(String key, Func0<Observable<CapturedResponse>> capture) {
+			this.key = key;
+			this.capture = capture;
+			// no request joins once the response is emitted, those already waiting get it replayed
+			this.response = Observable.defer(capture)
+				.doOnNext(captured -> {
+					flights.remove(key, this);
+					keep(captured);
+				})
+				.doOnTerminate(() -> flights.remove(key, this))
+				.replay(1);
+		}
+
+		/**
+		 * @return false if the flight is over and a new one has to be started
+		 */
+		private synchronized boolean join() {
+			if (closed) {
+				return false;
+			}
+			waiters++;
+			return true;
+		}
+
+		private Observable<CapturedResponse> response() {
+			return response.doOnSubscribe(this::connect);
+		}
+
+		private void connect() {
+			synchronized (this) {
+				if (connected || closed) {
+					return;
+				}
+				connected = true;
+			}
+			// outside the lock, the route may emit right away
+			response.connect(this::connected);
+		}
+
+		private void connected(Subscription subscription) {
+			boolean cancelled;
+			synchronized (this) {
+				connection = subscription;
+				cancelled = closed;
+			}
+			if (cancelled) {
+				subscription.unsubscribe();
+			}
+		}
+
+		// never takes the lock of the flights map, which is held while joining
+		private synchronized void keep(CapturedResponse response) {
+			if (closed) {
+				response.release();
+			} else {
+				captured = response;
+			}
+		}
+
+		private void leave() {
+			Subscription running;
+			synchronized (this) {
+				if (--waiters > 0) {
+					return;
+				}
+				closed = true;
+				running = connection;
+				if (captured != null) {
+					captured.release();
+					captured = null;
+				}
+			}
+			flights.remove(key, this);
+			// cancels the route if nobody is waiting for it anymore
+			if (running != null) {
+				running.unsubscribe();
+			}
+		}
+	}
+}
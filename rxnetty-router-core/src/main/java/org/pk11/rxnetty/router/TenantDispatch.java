@@ -0,0 +1,437 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import io.reactivex.netty.protocol.http.server.RequestHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Dispatches requests to per-tenant routers, selected by a {@link TenantKey} such as a header or subdomain.
+ *
+ * A tenant's router is built on its first request from the {@link Routable} its loader returns, on a
+ * separate scheduler so the event loop keeps serving. Requests arriving while it is built wait for that
+ * same build. Built routers are kept in a cache bounded by their total weight, the number of route paths
+ * by default. Once it is exceeded, the tenants used least recently, as of their last request, are evicted
+ * until a quarter of the weight is free again, so the cost of eviction is spread over many loads. A router
+ * weighing more than the whole cache serves the requests that waited for it without being kept, and is
+ * logged; its tenant is then answered with 503 Service Unavailable for a minute rather than rebuilt for
+ * every request.
+ *
+ * Tenants the loader does not know are remembered for a few seconds, so requests naming them do not each
+ * start a load. At most 64 tenants are loaded at once by default; a request needing another load is
+ * answered with 503 Service Unavailable. A load only starts, and takes its slot, once a request waiting
+ * for it is subscribed.
+ *
+ * Example:
+ *
+ * {@code
+ *	HttpServer.newServer(8080).start(
+ *		TenantDispatch.<ByteBuf, ByteBuf>of(TenantDispatch.subdomain("example.com"), tenant -> catalog.routesFor(tenant), 512L << 20)
+ *			.newRouter(() -> new Router<ByteBuf, ByteBuf>().compact().notFound(ConstantResponse.notFound()))
+ *			.weighedBy(router -> router.getEstimatedBytesPerRoute() * router.getPaths().size()));
+ * }
+ */
+public final class TenantDispatch<I, O> implements RequestHandler<I, O> {
+
+	private static final Logger logger = LoggerFactory.getLogger(TenantDispatch.class);
+
+	// unknown or oversized tenants remembered at most, so that requests naming made up tenants cannot grow the maps
+	private static final int MAX_UNKNOWN = 10_000;
+
+	/**
+	 * Selects the tenant of a request.
+	 */
+	@FunctionalInterface
+	public interface TenantKey {
+		/**
+		 * @return the tenant, or null if the request names none
+		 */
+		String of(HttpServerRequest<?> request);
+	}
+
+	/**
+	 * Provides the routes of a tenant.
+	 */
+	@FunctionalInterface
+	public interface Loader<I, O> {
+		/**
+		 * Called off the event loop, at most once at a time per tenant.
+		 *
+		 * @return the routes of the tenant, or null if there is no such tenant
+		 */
+		Routable<I, O> load(String tenant) throws Exception;
+	}
+
+	private final TenantKey tenantKey;
+	private final Loader<I, O> loader;
+	private final long maxWeight;
+	private final long lowWaterWeight;
+	private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+	private final AtomicLong totalWeight = new AtomicLong();
+	// the time until which each unknown tenant is remembered, in System.nanoTime()
+	private final Map<String, Long> unknown = new ConcurrentHashMap<>();
+	// the time until which each tenant too heavy to keep is rejected, in System.nanoTime()
+	private final Map<String, Long> oversized = new ConcurrentHashMap<>();
+	private final Map<String, Observable<Tenant>> loads = new ConcurrentHashMap<>();
+	private final AtomicInteger loading = new AtomicInteger();
+	private final AtomicLong loaded = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private Supplier<Router<I, O>> routers = Router::new;
+	private ToLongFunction<Router<I, O>> weigher = router -> router.getPaths().size();
+	private Scheduler scheduler = Schedulers.io();
+	private long unknownNanos = Duration.ofSeconds(5).toNanos();
+	private long oversizedNanos = Duration.ofMinutes(1).toNanos();
+	private int maxLoads = 64;
+	private RequestHandler<I, O> unknownTenant = (request, response) -> {
+		response.setStatus(HttpResponseStatus.NOT_FOUND);
+		response.setHeader(HttpHeaderNames.CONTENT_LENGTH, "0");
+		return response.sendHeaders();
+	};
+
+	private TenantDispatch(TenantKey tenantKey, Loader<I, O> loader, long maxWeight) {
+		this.tenantKey = tenantKey;
+		this.loader = loader;
+		this.maxWeight = maxWeight;
+		this.lowWaterWeight = maxWeight - maxWeight / 4;
+	}
+
+	/**
+	 * @param maxWeight the total weight of the routers kept, see {@link #weighedBy}
+	 */
+	public static <I, O> TenantDispatch<I, O> of(TenantKey tenantKey, Loader<I, O> loader, long maxWeight) {
+		return new TenantDispatch<>(tenantKey, loader, maxWeight);
+	}
+
+	/**
+	 * @return a tenant key reading the given header
+	 */
+	public static TenantKey header(CharSequence name) {
+		return request -> request.getHeader(name);
+	}
+
+	/**
+	 * @return a tenant key taking the label before the domain in the Host header,
+	 * "acme" for "acme.example.com:8080" with "example.com"
+	 */
+	public static TenantKey subdomain(String domain) {
+		String suffix = "." + domain.toLowerCase(Locale.ROOT);
+		return request -> {
+			String host = request.getHeader(HttpHeaderNames.HOST);
+			if (host == null) {
+				return null;
+			}
+			int port = host.lastIndexOf(':');
+			host = (port > host.lastIndexOf(']') ? host.substring(0, port) : host).toLowerCase(Locale.ROOT);
+			if (!host.endsWith(suffix) || host.length() == suffix.length()) {
+				return null;
+			}
+			String subdomain = host.substring(0, host.length() - suffix.length());
+			return subdomain.indexOf('.') < 0 ? subdomain : null;
+		};
+	}
+
+	/**
+	 * @param factory creates the empty router a tenant's routes are added to, for example a compact one
+	 */
+	public TenantDispatch<I, O> newRouter(Supplier<Router<I, O>> factory) {
+		routers = factory;
+		return this;
+	}
+
+	/**
+	 * @param weight the weight of a tenant's router, counted against the maximum weight; for compact routers
+	 * an estimate of their heap is {@code router.getEstimatedBytesPerRoute() * router.getPaths().size()},
+	 * the per route estimate alone would let tenants with many routes weigh as little as those with few
+	 */
+	public TenantDispatch<I, O> weighedBy(ToLongFunction<Router<I, O>> weight) {
+		weigher = weight;
+		return this;
+	}
+
+	/**
+	 * @param loadScheduler where tenant routers are loaded and built, io by default
+	 */
+	public TenantDispatch<I, O> loadOn(Scheduler loadScheduler) {
+		scheduler = loadScheduler;
+		return this;
+	}
+
+	/**
+	 * @param duration how long a tenant the loader does not know is answered as unknown without loading it
+	 * again, 5 seconds by default; zero to load it for every request
+	 */
+	public TenantDispatch<I, O> rememberUnknownFor(Duration duration) {
+		unknownNanos = duration.toNanos();
+		return this;
+	}
+
+	/**
+	 * @param duration how long a tenant whose router weighs more than the maximum weight is answered with 503
+	 * without loading it again, a minute by default; zero to load it for every request
+	 */
+	public TenantDispatch<I, O> rememberOversizedFor(Duration duration) {
+		oversizedNanos = duration.toNanos();
+		return this;
+	}
+
+	/**
+	 * @param limit the number of tenants loaded at once, requests needing another load get a 503
+	 */
+	public TenantDispatch<I, O> maxConcurrentLoads(int limit) {
+		maxLoads = limit;
+		return this;
+	}
+
+	/**
+	 * @param handler answers requests naming no tenant or an unknown one, with 404 by default
+	 */
+	public TenantDispatch<I, O> unknownTenant(RequestHandler<I, O> handler) {
+		unknownTenant = handler;
+		return this;
+	}
+
+	@Override
+	public Observable<Void> handle(HttpServerRequest<I> request, HttpServerResponse<O> response) {
+		String tenant = tenantKey.of(request);
+		if (tenant == null) {
+			return unknownTenant.handle(request, response);
+		}
+		Tenant cached = tenants.get(tenant);
+		if (cached != null) {
+			cached.lastUsed = System.nanoTime();
+			return cached.dispatch.handle(request, response);
+		}
+		if (isRemembered(unknown, tenant)) {
+			return unknownTenant.handle(request, response);
+		}
+		if (isRemembered(oversized, tenant)) {
+			return reject(response);
+		}
+		// joins or starts the load on subscription, so a request that is never subscribed holds no load slot
+		return Observable.defer(() -> {
+			Tenant built = tenants.get(tenant);
+			if (built != null) {
+				built.lastUsed = System.nanoTime();
+				return built.dispatch.handle(request, response);
+			}
+			Observable<Tenant> load = loads.get(tenant);
+			if (load != null) {
+				coalesced.incrementAndGet();
+			} else {
+				// null when too many tenants are being loaded, which leaves no mapping
+				load = loads.computeIfAbsent(tenant, t -> reserveLoad() ? load(t) : null);
+				if (load == null) {
+					return reject(response);
+				}
+			}
+			return load.flatMap(loadedTenant -> loadedTenant.dispatch != null
+				? loadedTenant.dispatch.handle(request, response)
+				: unknownTenant.handle(request, response));
+		});
+	}
+
+	/**
+	 * Drops a tenant's router, for example after its routes changed; its next request loads it again.
+	 */
+	public void evict(String tenant) {
+		Tenant evicted = tenants.remove(tenant);
+		if (evicted != null) {
+			totalWeight.addAndGet(-evicted.weight);
+		}
+		unknown.remove(tenant);
+		oversized.remove(tenant);
+	}
+
+	/**
+	 * @return the number of tenant routers kept
+	 */
+	public int size() {
+		return tenants.size();
+	}
+
+	/**
+	 * @return the total weight of the tenant routers kept
+	 */
+	public long getWeight() {
+		return totalWeight.get();
+	}
+
+	/**
+	 * @return the number of tenant routers built so far
+	 */
+	public long getLoaded() {
+		return loaded.get();
+	}
+
+	/**
+	 * @return the number of requests that waited for a router another request was already loading
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the number of requests answered with 503 because too many tenants were being loaded
+	 * or because the router of their tenant is too heavy to keep
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private Observable<Tenant> load(String tenant) {
+		// cached rather than shared, so a request joining just as the load completes still gets its result;
+		// the load ends before that result is handed on, as handing it on may answer a request first.
+		// Once subscribed, the build runs to the end even if the requests waiting for it go away.
+		return Observable.fromCallable(() -> build(tenant))
+			.subscribeOn(scheduler)
+			.doOnNext(built -> {
+				if (built.dispatch != null) {
+					put(tenant, built);
+				} else {
+					remember(unknown, tenant, unknownNanos);
+				}
+				loadEnded(tenant);
+			})
+			.doOnError(e -> loadEnded(tenant))
+			.cache();
+	}
+
+	private Observable<Void> reject(HttpServerResponse<O> response) {
+		rejected.incrementAndGet();
+		response.setStatus(HttpResponseStatus.SERVICE_UNAVAILABLE);
+		response.setHeader(HttpHeaderNames.CONTENT_LENGTH, "0");
+		return response.sendHeaders();
+	}
+
+	private void loadEnded(String tenant) {
+		loads.remove(tenant);
+		loading.decrementAndGet();
+	}
+
+	private boolean reserveLoad() {
+		int current;
+		do {
+			current = loading.get();
+			if (current >= maxLoads) {
+				return false;
+			}
+		} while (!loading.compareAndSet(current, current + 1));
+		return true;
+	}
+
+	private Tenant build(String tenant) throws Exception {
+		Routable<I, O> routable = loader.load(tenant);
+		if (routable == null) {
+			return new Tenant(null, 0);
+		}
+		Router<I, O> router = routers.get().register(routable);
+		loaded.incrementAndGet();
+		return new Tenant(Dispatch.using(router), weigher.applyAsLong(router));
+	}
+
+	private void put(String tenant, Tenant built) {
+		if (built.weight > maxWeight) {
+			// logged once per period the tenant is remembered, as it is not loaded again meanwhile
+			remember(oversized, tenant, oversizedNanos);
+			logger.warn("Router of tenant '{}' weighs {}, more than the {} kept at most, it is not kept", tenant, built.weight, maxWeight);
+			return;
+		}
+		Tenant replaced = tenants.put(tenant, built);
+		totalWeight.addAndGet(replaced != null ? built.weight - replaced.weight : built.weight);
+		if (totalWeight.get() > maxWeight) {
+			shrink();
+		}
+	}
+
+	/**
+	 * Evicts the tenants used least recently until a quarter of the weight is free. Requests do not wait for
+	 * eviction, so the order is as of when it started.
+	 */
+	private synchronized void shrink() {
+		if (totalWeight.get() <= maxWeight) {
+			return;
+		}
+		long now = System.nanoTime();
+		// requests keep writing lastUsed, so the sort runs on a snapshot of it
+		List<Used> eldest = new ArrayList<>(tenants.size());
+		tenants.forEach((key, tenant) -> eldest.add(new Used(key, tenant, tenant.lastUsed - now)));
+		eldest.sort(Comparator.comparingLong(used -> used.lastUsed));
+		for (int i = 0; i < eldest.size() && totalWeight.get() > lowWaterWeight; i++) {
+			Used used = eldest.get(i);
+			if (tenants.remove(used.key, used.tenant)) {
+				totalWeight.addAndGet(-used.tenant.weight);
+			}
+		}
+	}
+
+	private static boolean isRemembered(Map<String, Long> remembered, String tenant) {
+		Long until = remembered.get(tenant);
+		if (until == null) {
+			return false;
+		}
+		if (until - System.nanoTime() > 0) {
+			return true;
+		}
+		remembered.remove(tenant, until);
+		return false;
+	}
+
+	private static void remember(Map<String, Long> remembered, String tenant, long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (remembered.size() >= MAX_UNKNOWN) {
+			remembered.values().removeIf(until -> until - now <= 0);
+			if (remembered.size() >= MAX_UNKNOWN) {
+				return;
+			}
+		}
+		remembered.put(tenant, now + nanos);
+	}
+
+	private class Used {
+		private final String key;
+		private final Tenant tenant;
+		private final long lastUsed;
+
+		private Used(String key, Tenant tenant, long lastUsed) {
+			this.key = key;
+			this.tenant = tenant;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private class Tenant {
+		// null for an unknown tenant
+		private final Dispatch<I, O> dispatch;
+		private final long weight;
+		// approximate, written by requests without synchronization
+		private volatile long lastUsed = System.nanoTime();
+
+		private Tenant(Dispatch<I, O> dispatch, long weight) {
+			this.dispatch = dispatch;
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.pk11.rxnetty.router;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets for a large number of keys, spread over independent shards.
+ *
+ * Each bucket is a single AtomicLong holding its theoretical arrival time (the generic cell rate algorithm),
+ * so taking a token is one compare-and-set. A bucket whose arrival time has passed is full again and can be
+ * dropped without changing any decision, which is how idle keys are evicted. Only when a shard is full of busy
+ * keys are some of them dropped early, granting those clients a fresh bucket.
+ */
+final class TokenBuckets {
+
+	private final long intervalNanos;
+	private final long toleranceNanos;
+	private final Shard[] shards;
+	private final int mask;
+	private final int maxKeysPerShard;
+
+	/**
+	 * @param intervalNanos the time to earn one token
+	 * @param burst the number of tokens a bucket holds
+	 * @param maxKeys the number of keys to keep at most, across shards
+	 */
+	TokenBuckets(long intervalNanos, int burst, int maxKeys) {
+		this.intervalNanos = intervalNanos;
+		this.toleranceNanos = intervalNanos * burst;
+		int shardCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard();
+		}
+		this.mask = shardCount - 1;
+		this.maxKeysPerShard = Math.max(16, maxKeys / shardCount);
+	}
+
+	/**
+	 * Takes a token from the bucket of the given key.
+	 *
+	 * @return 0 if a token was taken, otherwise the nanoseconds until one is available
+	 */
+	long tryAcquire(String key, long now) {
+		Shard shard = shards[spread(key.hashCode()) & mask];
+		AtomicLong arrival = shard.buckets.get(key);
+		if (arrival == null) {
+			arrival = shard.buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+			if (shard.buckets.size() > maxKeysPerShard) {
+				shard.evict(now, maxKeysPerShard);
+			}
+		}
+		while (true) {
+			long current = arrival.get();
+			long next = Math.max(current, now) + intervalNanos;
+			long wait = next - now - toleranceNanos;
+			if (wait > 0) {
+				return wait;
+			}
+			if (arrival.compareAndSet(current, next)) {
+				return 0;
+			}
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for (Shard shard : shards) {
+			size += shard.buckets.size();
+		}
+		return size;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static class Shard {
+		private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+		private final AtomicBoolean evicting = new AtomicBoolean();
+
+		private void evict(long now, int maxKeys) {
+			if (!evicting.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				buckets.values().removeIf(arrival -> arrival.get() - now <= 0);
+				// leave headroom so that sweeps stay rare even when most keys are busy
+				Iterator<AtomicLong> iterator = buckets.values().iterator();
+				int target = maxKeys - maxKeys / 4;
+				while (buckets.size() > target && iterator.hasNext()) {
+					iterator.next();
+					iterator.remove();
+				}
+			} finally {
+				evicting.set(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package org.pk11.rxnetty.router;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.AsciiString;
+import io.reactivex.netty.protocol.http.client.HttpClient;
+import io.reactivex.netty.protocol.http.client.HttpClientRequest;
+import io.reactivex.netty.protocol.http.client.HttpClientResponse;
+import io.reactivex.netty.protocol.http.server.HttpServer;
+import jauter.Pattern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends requests for every route of a router to a server that was just started, so that routing, dispatch
+ * and the handlers are compiled by the JIT before real traffic arrives.
+ *
+ * A request is made up for each pattern by filling its params with sample values, and sent for each of
+ * the allowed methods the pattern is routed for, GET and HEAD by default. With an origin set, requests
+ * carry it and each path also gets a CORS preflight. Warm-up requests carry the {@link #HEADER} header.
+ *
+ * Requests go over loopback because RxNetty only creates server requests and responses from a channel.
+ * Warm-up runs a fixed number of rounds, or until the duration of a round stops changing.
+ *
+ * Example:
+ *
+ * {@code
+ *	HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer(8080).start(using(router));
+ *	WarmUp.of(router).param("id", "42").untilStable(0.1, 200).run(server);
+ *	readiness.set(true);
+ * }
+ */
+public final class WarmUp {
+
+	public static final AsciiString HEADER = AsciiString.of("X-Warm-Up");
+
+	private static final int STABLE_ROUNDS = 3;
+
+	private final Router<?, ?> router;
+	private final Map<String, String> samples = new HashMap<>();
+	private List<HttpMethod> methods = Arrays.asList(HttpMethod.GET, HttpMethod.HEAD);
+	private String origin;
+	private int rounds = 100;
+	private double tolerance = -1;
+
+	private WarmUp(Router<?, ?> router) {
+		this.router = router;
+	}
+
+	public static WarmUp of(Router<?, ?> router) {
+		return new WarmUp(router);
+	}
+
+	/**
+	 * @param value the value used for the param in every pattern declaring it, "1" when not given
+	 */
+	public WarmUp param(String name, String value) {
+		samples.put(name, value);
+		return this;
+	}
+
+	/**
+	 * @param allowed the methods requests may be sent with, only ones whose handlers are safe to run for nothing
+	 */
+	public WarmUp methods(HttpMethod... allowed) {
+		methods = Arrays.asList(allowed);
+		return this;
+	}
+
+	/**
+	 * Adds the origin to the requests and sends a CORS preflight for each path.
+	 */
+	public WarmUp origin(String value) {
+		origin = value;
+		return this;
+	}
+
+	public WarmUp rounds(int count) {
+		rounds = count;
+		tolerance = -1;
+		return this;
+	}
+
+	/**
+	 * Runs rounds until the durations of three rounds in a row each differ from the previous one
+	 * by less than the tolerance.
+	 *
+	 * @param relativeTolerance for example 0.1 for 10%
+	 * @param maxRounds the number of rounds after which to stop anyway
+	 */
+	public WarmUp untilStable(double relativeTolerance, int maxRounds) {
+		tolerance = relativeTolerance;
+		rounds = maxRounds;
+		return this;
+	}
+
+	/**
+	 * @return the number of rounds run
+	 */
+	public int run(HttpServer<?, ?> server) {
+		return run(server.getServerPort());
+	}
+
+	/**
+	 * Blocks until done. Failing requests are ignored, they warm up the error paths as well.
+	 *
+	 * @return the number of rounds run
+	 */
+	public int run(int port) {
+		HttpClient<ByteBuf, ByteBuf> client = HttpClient.newClient("localhost", port).readTimeOut(10, TimeUnit.SECONDS);
+		List<Request> requests = requests();
+		long previous = -1;
+		int stable = 0;
+		int round = 0;
+		while (round < rounds) {
+			long start = System.nanoTime();
+			for (Request request : requests) {
+				send(client, request);
+			}
+			long duration = System.nanoTime() - start;
+			round++;
+			if (tolerance >= 0) {
+				stable = previous > 0 && Math.abs(duration - previous) < previous * tolerance ? stable + 1 : 0;
+				if (stable >= STABLE_ROUNDS) {
+					break;
+				}
+			}
+			previous = duration;
+		}
+		return round;
+	}
+
+	/**
+	 * @return the path requested for a pattern
+	 */
+	String samplePath(String pattern) {
+		StringBuilder path = new StringBuilder();
+		for (String token : new Pattern<>(pattern, null).tokens()) {
+			path.append('/');
+			if (":*".equals(token)) {
+				path.append(samples.getOrDefault("*", "warm-up"));
+			} else if (token.startsWith(":")) {
+				path.append(samples.getOrDefault(token.substring(1), "1"));
+			} else {
+				path.append(token);
+			}
+		}
+		return path.length() == 0 ? "/" : path.toString();
+	}
+
+	private List<Request> requests() {
+		List<Request> requests = new ArrayList<>();
+		for (String pattern : new TreeSet<>(router.getPaths())) {
+			String path = samplePath(pattern);
+			Collection<HttpMethod> routed = router.getMethodsFor(path);
+			for (HttpMethod method : methods) {
+				if (routed.contains(method)) {
+					requests.add(new Request(method, path, null));
+				}
+			}
+			if (origin != null && !routed.isEmpty()) {
+				HttpMethod preflighted = methods.stream().filter(routed::contains).findFirst().orElse(routed.iterator().next());
+				requests.add(new Request(HttpMethod.OPTIONS, path, preflighted));
+			}
+		}
+		// the notFound path
+		requests.add(new Request(HttpMethod.GET, "/warm-up/" + Long.toHexString(System.nanoTime()), null));
+		return requests;
+	}
+
+	private void send(HttpClient<ByteBuf, ByteBuf> client, Request request) {
+		HttpClientRequest<ByteBuf, ByteBuf> outgoing = client.createRequest(request.method, request.path)
+			.setHeader(HEADER, "1");
+		if (origin != null) {
+			outgoing = outgoing.setHeader(HttpHeaderNames.ORIGIN, origin);
+		}
+		if (request.preflightMethod != null) {
+			outgoing = outgoing.setHeader(HttpHeaderNames.ACCESS_CONTROL_REQUEST_METHOD, request.preflightMethod.name());
+		}
+		try {
+			outgoing.flatMap(HttpClientResponse::discardContent).toBlocking().lastOrDefault(null);
+		} catch (RuntimeException e) {
+			// a failing handler still gets compiled
+		}
+	}
+
+	private static class Request {
+		private final HttpMethod method;
+		private final String path;
+		private final HttpMethod preflightMethod;
+
+		private Request(HttpMethod method, String path, HttpMethod preflightMethod) {
+			this.method = method;
+			this.path = path;
+			this.preflightMethod = preflightMethod;
+		}
+	}
+}
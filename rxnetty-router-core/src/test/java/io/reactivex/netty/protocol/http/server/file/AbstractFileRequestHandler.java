@@ -1,118 +0,0 @@
-/*
- * Copyright 2014 Netflix, Inc.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package io.reactivex.netty.protocol.http.server.file;
-
-import io.netty.buffer.ByteBuf;
-import io.netty.handler.codec.http.HttpHeaderNames;
-import io.reactivex.netty.protocol.http.server.HttpServerResponse;
-import io.reactivex.netty.protocol.http.server.RequestHandler;
-
-import javax.activation.MimetypesFileTypeMap;
-import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.util.regex.Pattern;
-
-public abstract class AbstractFileRequestHandler implements RequestHandler<ByteBuf, ByteBuf> {
-  public static final Pattern INSECURE_URI = Pattern.compile(".*[<>&\"].*");
-  public static final Pattern ALLOWED_FILE_NAME = Pattern.compile("[A-Za-z0-9][-_A-Za-z0-9\\.]*");
-  public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
-  public static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
-  public static final int HTTP_CACHE_SECONDS = 60;
-
-  /**
-   * Sets the Date header for the HTTP response
-   *
-   * @param response
-   *            HTTP response
-   */
-  public static void setDateHeader(HttpServerResponse<ByteBuf> response, SimpleDateFormat dateFormatter) {
-    dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-    Calendar time = new GregorianCalendar();
-    response.setHeader(HttpHeaderNames.DATE, dateFormatter.format(time.getTime()));
-  }
-
-  /**
-   * Sets the Date and Cache headers for the HTTP Response
-   *
-   * @param response
-   *            HTTP response
-   * @param fileToCache
-   *            file to extract content type
-   */
-  public static void setDateAndCacheHeaders(HttpServerResponse<ByteBuf> response, File fileToCache) {
-    SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-    dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-    // Date header
-    Calendar time = new GregorianCalendar();
-    response.setHeader(HttpHeaderNames.DATE, dateFormatter.format(time.getTime()));
-
-    // Add cache headers
-    time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-    response.setHeader(HttpHeaderNames.EXPIRES, dateFormatter.format(time.getTime()));
-    response.setHeader(HttpHeaderNames.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
-    response.setHeader(HttpHeaderNames.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
-  }
-
-  /**
-   * Sets the content type header for the HTTP Response
-   *
-   * @param response
-   *            HTTP response
-   * @param file
-   *            file to extract content type
-   */
-  public static void setContentTypeHeader(HttpServerResponse<ByteBuf> response, File file) {
-    MimetypesFileTypeMap mimeTypesMap = new MimetypesFileTypeMap();
-    response.setHeader(HttpHeaderNames.CONTENT_TYPE, mimeTypesMap.getContentType(file.getPath()));
-  }
-
-  public static String sanitizeUri(String uri)  {
-    // Decode the path.
-    try {
-      uri = URLDecoder.decode(uri, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(String.format("Unable to decode URI '%s'", uri), e);
-    }
-
-    if (!uri.startsWith("/")) {
-      return null;
-    }
-
-    // Convert file separators.
-    uri = uri.replace('/', File.separatorChar);
-
-    // Simplistic dumb security check.
-    // You will have to do something serious in the production environment.
-    if (uri.contains(File.separator + '.') ||
-      uri.contains('.' + File.separator) ||
-      uri.startsWith(".") || uri.endsWith(".") ||
-      INSECURE_URI.matcher(uri).matches()) {
-      return null;
-    }
-
-    // Convert to absolute path.
-    return uri;
-  }
-}
@@ -1,6 +1,8 @@
 package org.pk11.rxnetty.router;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.reactivex.netty.protocol.http.client.HttpClientResponse;
 import io.reactivex.netty.protocol.http.server.HttpServer;
@@ -8,17 +10,45 @@ import io.reactivex.netty.protocol.http.server.HttpServerRequest;
 import io.reactivex.netty.protocol.http.server.HttpServerResponse;
 import io.reactivex.netty.protocol.http.server.RequestHandler;
 import io.reactivex.netty.protocol.http.server.file.ClassPathFileRequestHandler;
+import io.reactivex.netty.protocol.http.server.file.FileRequestHandler;
+import io.reactivex.netty.protocol.http.server.file.CompressedFileCache;
+import io.reactivex.netty.protocol.http.server.file.IndexedClassPathFileRequestHandler;
+import io.reactivex.netty.protocol.http.server.file.MappedFileCache;
+import jauter.Routed;
 import org.junit.Assert;
 import org.junit.Test;
 import rx.Observable;
+import rx.Subscription;
+import rx.subjects.PublishSubject;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static io.reactivex.netty.protocol.http.client.HttpClient.newClient;
+import static org.apache.commons.io.IOUtils.toByteArray;
 import static org.pk11.rxnetty.router.Dispatch.using;
 import static org.pk11.rxnetty.router.Dispatch.withParams;
 import static rx.Observable.just;
@@ -170,4 +200,1266 @@ public class RouterTest {
 		Assert.assertTrue(response.getStatus().code() == 200);
 		server.shutdown();
 	}
+
+	@Test
+	public void shouldServeGzipSidecarWhenAccepted() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = newServer();
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/public/sidecar.txt")
+			.setHeader("Accept-Encoding", "gzip, deflate")
+			.toBlocking()
+			.first();
+
+		Assert.assertEquals("gzip", response.getHeader("Content-Encoding"));
+		Assert.assertTrue("Accept-Encoding".equalsIgnoreCase(response.getHeader("Vary")));
+		Assert.assertEquals("Hello Gzip\n", gunzip(response));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldIgnoreSidecarOlderThanItsFile() throws Exception {
+		File dir = Files.createTempDirectory("assets").toFile();
+		File asset = new File(dir, "asset.txt");
+		File sidecar = new File(dir, "asset.txt.gz");
+		try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(sidecar))) {
+			out.write("stale\n".getBytes(Charset.forName("UTF-8")));
+		}
+		try (FileOutputStream out = new FileOutputStream(asset)) {
+			out.write("fresh\n".getBytes(Charset.forName("UTF-8")));
+		}
+		Assert.assertTrue(sidecar.setLastModified(asset.lastModified() - 60000));
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/:*", new FileRequestHandler() {
+						@Override
+						protected URI resolveUri(String path) {
+							return new File(dir, path).toURI();
+						}
+					})
+					.notFound(new Handler404())
+			)
+		);
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/asset.txt")
+			.setHeader("Accept-Encoding", "gzip")
+			.toBlocking()
+			.first();
+		// too small for the compressed cache to gain anything, so sent as is
+		Assert.assertNull(response.getHeader("Content-Encoding"));
+		Assert.assertEquals("fresh\n", content(response));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldReadSidecarOncePerVersion() throws Exception {
+		File dir = Files.createTempDirectory("assets").toFile();
+		File asset = new File(dir, "asset.txt");
+		File sidecar = new File(dir, "asset.txt.gz");
+		Files.write(asset.toPath(), "asset\n".getBytes("UTF-8"));
+		try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(sidecar))) {
+			out.write("sidecar\n".getBytes("UTF-8"));
+		}
+		long lastModified = sidecar.lastModified();
+		CompressedFileCache compressedFileCache = new CompressedFileCache();
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/:*", new FileRequestHandler(compressedFileCache) {
+						@Override
+						protected URI resolveUri(String path) {
+							return new File(dir, path).toURI();
+						}
+					})
+					.notFound(new Handler404())
+			)
+		);
+
+		for (int i = 0; i < 2; i++) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet("/asset.txt")
+				.setHeader("Accept-Encoding", "gzip")
+				.toBlocking()
+				.first();
+			Assert.assertEquals("sidecar\n", gunzip(response));
+			// rewritten under the same modification time, so the cached version is still served
+			Files.write(sidecar.toPath(), new byte[] {1, 2, 3});
+			Assert.assertTrue(sidecar.setLastModified(lastModified));
+		}
+		Assert.assertTrue(compressedFileCache.size() > 0);
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldRememberContentTooLargeToCache() throws Exception {
+		File asset = File.createTempFile("asset", ".txt");
+		asset.deleteOnExit();
+		byte[] content = new byte[4096];
+		Arrays.fill(content, (byte) 'a');
+		Files.write(asset.toPath(), content);
+		CompressedFileCache compressedFileCache = new CompressedFileCache(16);
+
+		Assert.assertNotNull(compressedFileCache.get(asset));
+		// not compressed again while the file is unchanged, it is served uncompressed instead
+		Assert.assertNull(compressedFileCache.get(asset));
+		Assert.assertEquals(0, compressedFileCache.size());
+
+		Assert.assertTrue(asset.setLastModified(asset.lastModified() - 10_000));
+		Assert.assertNotNull(compressedFileCache.get(asset));
+	}
+
+	@Test
+	public void shouldCompressAssetWithoutSidecarWhenAccepted() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = newServer();
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/public/app.css")
+			.setHeader("Accept-Encoding", "gzip")
+			.toBlocking()
+			.first();
+
+		Assert.assertEquals("gzip", response.getHeader("Content-Encoding"));
+		Assert.assertTrue(gunzip(response).startsWith("/* generated stylesheet"));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldNotCompressAssetWhenGzipNotAccepted() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = newServer();
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/public/sidecar.txt")
+			.setHeader("Accept-Encoding", "gzip;q=0, identity")
+			.toBlocking()
+			.first();
+
+		Assert.assertFalse(response.containsHeader("Content-Encoding"));
+		Assert.assertTrue("Accept-Encoding".equalsIgnoreCase(response.getHeader("Vary")));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldServeIndexedClassPathAsset() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/public/:*", new IndexedClassPathFileRequestHandler("www"))
+					.notFound(new Handler404())
+			)
+		);
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/public/index.html")
+			.toBlocking()
+			.first();
+		Assert.assertEquals(200, response.getStatus().code());
+		Assert.assertEquals("Hello World\n", content(response));
+
+		HttpClientResponse<ByteBuf> missing = newClient("localhost", server.getServerPort())
+			.createGet("/public/index.html1")
+			.toBlocking()
+			.first();
+		Assert.assertEquals(404, missing.getStatus().code());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldServeIndexedAssetFromJarWithoutDirectoryEntries() throws Exception {
+		File jar = File.createTempFile("assets", ".jar");
+		jar.deleteOnExit();
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+			out.putNextEntry(new JarEntry("assets/public/hello.txt"));
+			out.write("Hello Jar".getBytes("UTF-8"));
+			out.closeEntry();
+		}
+		IndexedClassPathFileRequestHandler handler;
+		try (URLClassLoader classLoader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, null)) {
+			handler = new IndexedClassPathFileRequestHandler("assets", classLoader);
+		}
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/public/:*", handler)
+					.notFound(new Handler404())
+			)
+		);
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/public/hello.txt")
+			.toBlocking()
+			.first();
+		Assert.assertEquals(200, response.getStatus().code());
+		Assert.assertEquals("Hello Jar", content(response));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldServeMappedAsset() throws Exception {
+		MappedFileCache mappedFileCache = new MappedFileCache();
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/public/:*", new ClassPathFileRequestHandler("www", new CompressedFileCache(), mappedFileCache))
+					.notFound(new Handler404())
+			)
+		);
+
+		for (int i = 0; i < 2; i++) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet("/public/index.html")
+				.toBlocking()
+				.first();
+			Assert.assertEquals(200, response.getStatus().code());
+			Assert.assertEquals("Hello World\n", content(response));
+		}
+		Assert.assertEquals(1, mappedFileCache.size());
+		mappedFileCache.clear();
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldBoundMappedFiles() throws Exception {
+		File dir = Files.createTempDirectory("mapped").toFile();
+		File first = new File(dir, "first.txt");
+		File second = new File(dir, "second.txt");
+		Files.write(first.toPath(), "first".getBytes("UTF-8"));
+		Files.write(second.toPath(), "second".getBytes("UTF-8"));
+		MappedFileCache mappedFileCache = new MappedFileCache(8);
+
+		mappedFileCache.acquire(first).release();
+		mappedFileCache.acquire(second).release();
+		Assert.assertEquals(1, mappedFileCache.size());
+		Assert.assertEquals(6, mappedFileCache.getBytes());
+
+		Assert.assertTrue(second.delete());
+		try {
+			mappedFileCache.acquire(second);
+			Assert.fail();
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertEquals(0, mappedFileCache.size());
+		first.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void shouldRemapFileTruncatedInPlace() throws Exception {
+		File dir = Files.createTempDirectory("mapped").toFile();
+		File file = new File(dir, "file.txt");
+		Files.write(file.toPath(), "long content".getBytes("UTF-8"));
+		long lastModified = file.lastModified();
+		MappedFileCache mappedFileCache = new MappedFileCache();
+
+		MappedFileCache.Lease lease = mappedFileCache.acquire(file);
+		Assert.assertTrue(lease.isCurrent(file));
+		// truncated in place, keeping its modification time
+		Files.write(file.toPath(), "short".getBytes("UTF-8"));
+		Assert.assertTrue(file.setLastModified(lastModified));
+		Assert.assertFalse(lease.isCurrent(file));
+		lease.release();
+
+		lease = mappedFileCache.acquire(file);
+		Assert.assertEquals("short", lease.content().toString(Charset.forName("UTF-8")));
+		lease.release();
+		mappedFileCache.clear();
+		file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void shouldReturnNotModifiedForUnchangedAsset() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = newServer();
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/public/index.html")
+			.toBlocking()
+			.first();
+		String lastModified = response.getHeader("Last-Modified");
+		Assert.assertNotNull(response.getHeader("Date"));
+		Assert.assertNotNull(response.getHeader("Expires"));
+
+		HttpClientResponse<ByteBuf> conditional = newClient("localhost", server.getServerPort())
+			.createGet("/public/index.html")
+			.setHeader("If-Modified-Since", lastModified)
+			.toBlocking()
+			.first();
+		Assert.assertEquals(304, conditional.getStatus().code());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldReturnNotModifiedForMatchingETag() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = newServer();
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/public/index.html")
+			.toBlocking()
+			.first();
+		String etag = response.getHeader("ETag");
+		Assert.assertNotNull(etag);
+
+		HttpClientResponse<ByteBuf> conditional = newClient("localhost", server.getServerPort())
+			.createGet("/public/index.html")
+			.setHeader("If-None-Match", "\"other\", " + etag)
+			.toBlocking()
+			.first();
+		Assert.assertEquals(304, conditional.getStatus().code());
+		Assert.assertEquals(etag, conditional.getHeader("ETag"));
+
+		HttpClientResponse<ByteBuf> mismatch = newClient("localhost", server.getServerPort())
+			.createGet("/public/index.html")
+			.setHeader("If-None-Match", "\"other\"")
+			.toBlocking()
+			.first();
+		Assert.assertEquals(200, mismatch.getStatus().code());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldSendWeakETagWhenGzippedAssetIsNotModified() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = newServer();
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/public/sidecar.txt")
+			.setHeader("Accept-Encoding", "gzip")
+			.toBlocking()
+			.first();
+		String etag = response.getHeader("ETag");
+		Assert.assertTrue(etag.startsWith("W/"));
+
+		HttpClientResponse<ByteBuf> conditional = newClient("localhost", server.getServerPort())
+			.createGet("/public/sidecar.txt")
+			.setHeader("Accept-Encoding", "gzip")
+			.setHeader("If-None-Match", etag)
+			.toBlocking()
+			.first();
+		Assert.assertEquals(304, conditional.getStatus().code());
+		Assert.assertEquals(etag, conditional.getHeader("ETag"));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldAnswerConditionalRouteWithoutRunningIt() throws Exception {
+		final List<String> rendered = new ArrayList<>();
+		Route<ByteBuf, ByteBuf> article = Conditional.withETag(
+			(params, request) -> "\"v1-" + params.get("id") + "\"",
+			(params, request, response) -> {
+				rendered.add(params.get("id"));
+				response.setStatus(HttpResponseStatus.OK);
+				return response.writeString(just("article " + params.get("id")));
+			});
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/article/:id", article)
+					.PUT("/article/:id", article)
+					.notFound(new Handler404())
+			)
+		);
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/article/1")
+			.setHeader("If-None-Match", "W/\"v1-1\"")
+			.toBlocking()
+			.first();
+		Assert.assertEquals(304, response.getStatus().code());
+		Assert.assertEquals("\"v1-1\"", response.getHeader("ETag"));
+		Assert.assertTrue(rendered.isEmpty());
+
+		response = newClient("localhost", server.getServerPort())
+			.createPut("/article/1")
+			.setHeader("If-None-Match", "\"v1-1\"")
+			.toBlocking()
+			.first();
+		Assert.assertEquals(412, response.getStatus().code());
+		Assert.assertTrue(rendered.isEmpty());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldRunOnlyApplicableFilters() throws Exception {
+		final List<String> trace = new ArrayList<>();
+		Router<ByteBuf, ByteBuf> router = new Router<ByteBuf, ByteBuf>()
+			.filter((params, request, response, next) -> {
+				trace.add("global");
+				return next.handle(params, request, response);
+			})
+			.filter("/admin", (params, request, response, next) -> {
+				response.setStatus(HttpResponseStatus.UNAUTHORIZED);
+				return response.sendHeaders();
+			});
+		Filter<ByteBuf, ByteBuf> routeFilter = (params, request, response, next) -> {
+			trace.add("route " + params.get("id"));
+			return next.handle(params, request, response);
+		};
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				router
+					.GET("/hello", new HelloHandler())
+					.GET("/admin/users", new HelloHandler())
+					.GET("/article/:id", routeFilter.applyTo(withParams((params, request, response) ->
+						response.writeString(just("params:" + params.get("id")))
+					)))
+					.notFound(new Handler404())
+			)
+		);
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/article/1")
+			.toBlocking()
+			.first();
+		Assert.assertEquals("params:1", content(response));
+		Assert.assertEquals(Arrays.asList("global", "route 1"), trace);
+
+		response = newClient("localhost", server.getServerPort())
+			.createGet("/admin/users")
+			.toBlocking()
+			.first();
+		Assert.assertEquals(401, response.getStatus().code());
+
+		trace.clear();
+		response = newClient("localhost", server.getServerPort())
+			.createGet("/hello")
+			.toBlocking()
+			.first();
+		Assert.assertEquals("Hello!", content(response));
+		Assert.assertEquals(Arrays.asList("global"), trace);
+
+		try {
+			router.filter("/hello", routeFilter);
+			Assert.fail("filters added after their routes should be rejected");
+		} catch (IllegalStateException expected) {
+		}
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldReverseRouteFilteredRoutes() throws Exception {
+		RequestHandler<ByteBuf, ByteBuf> users = new HelloHandler();
+		RequestHandler<ByteBuf, ByteBuf> health = new HelloHandler();
+		for (Router<ByteBuf, ByteBuf> router : Arrays.asList(new Router<ByteBuf, ByteBuf>(), new Router<ByteBuf, ByteBuf>().compact())) {
+			router
+				.filter("/users", (params, request, response, next) -> next.handle(params, request, response))
+				.GET("/users/:id", users)
+				.GET("/health", health);
+			Assert.assertEquals("/users/1", router.path(users, "id", "1"));
+			Assert.assertEquals("/users/1", router.path(HttpMethod.GET, users, "id", "1"));
+			Assert.assertEquals("/health", router.path(health));
+
+			router.removeTarget(users);
+			Assert.assertNull(router.path(users, "id", "1"));
+		}
+	}
+
+	@Test
+	public void shouldRejectRequestsOverConcurrencyLimit() throws Exception {
+		final PublishSubject<Void> slow = PublishSubject.create();
+		final CountDownLatch started = new CountDownLatch(1);
+		ConcurrencyLimit<ByteBuf, ByteBuf> limit = ConcurrencyLimit.<ByteBuf, ByteBuf>fixed(1)
+			.rejectWith(HttpResponseStatus.TOO_MANY_REQUESTS, Duration.ofSeconds(1));
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/slow", limit.applyTo((request, response) -> {
+						started.countDown();
+						return slow;
+					}))
+					.notFound(new Handler404())
+			)
+		);
+
+		newClient("localhost", server.getServerPort()).createGet("/slow").subscribe();
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(1, limit.getInFlight());
+
+		HttpClientResponse<ByteBuf> rejected = newClient("localhost", server.getServerPort())
+			.createGet("/slow")
+			.toBlocking()
+			.toFuture()
+			.get(10, TimeUnit.SECONDS);
+		Assert.assertEquals(429, rejected.getStatus().code());
+		Assert.assertEquals("1", rejected.getHeader("Retry-After"));
+
+		slow.onCompleted();
+		Assert.assertEquals(0, limit.getInFlight());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldRateLimitPerRouteAndClient() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.filter(RateLimit.perClient(1, Duration.ofMinutes(1), 2, RateLimit.header("X-Api-Key")))
+					.GET("/hello", new HelloHandler())
+					.GET("/article/:id", new HelloHandler())
+					.notFound(new Handler404())
+			)
+		);
+
+		Assert.assertEquals(200, status(server, "/hello", "a"));
+		Assert.assertEquals(200, status(server, "/hello", "a"));
+		HttpClientResponse<ByteBuf> limited = newClient("localhost", server.getServerPort())
+			.createGet("/hello")
+			.setHeader("X-Api-Key", "a")
+			.toBlocking()
+			.first();
+		Assert.assertEquals(429, limited.getStatus().code());
+		Assert.assertTrue(Long.parseLong(limited.getHeader("Retry-After")) > 0);
+
+		Assert.assertEquals(200, status(server, "/hello", "b"));
+		Assert.assertEquals(200, status(server, "/article/1", "a"));
+		server.shutdown();
+	}
+
+	private static int status(HttpServer<ByteBuf, ByteBuf> server, String path, String apiKey) {
+		return newClient("localhost", server.getServerPort())
+			.createGet(path)
+			.setHeader("X-Api-Key", apiKey)
+			.toBlocking()
+			.first()
+			.getStatus()
+			.code();
+	}
+
+	@Test
+	public void shouldTimeOutAndCancelSlowRoute() throws Exception {
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		final List<Duration> budgets = new ArrayList<>();
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.filter("/slow", Deadline.of(Duration.ofMillis(200)))
+					.GET("/slow", (request, response) -> {
+						budgets.add(Deadline.remaining(request));
+						return Observable.<Void>never().doOnUnsubscribe(cancelled::countDown);
+					})
+					.notFound(new Handler404())
+			)
+		);
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/slow")
+			.toBlocking()
+			.toFuture()
+			.get(10, TimeUnit.SECONDS);
+		Assert.assertEquals(504, response.getStatus().code());
+		Assert.assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(budgets.get(0).toMillis() > 0 && budgets.get(0).toMillis() <= 200);
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldOnlyHonourInboundDeadlineWhenTrusted() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.filter("/public", Deadline.of(Duration.ofSeconds(5)))
+					.filter("/internal", Deadline.<ByteBuf, ByteBuf>of(Duration.ofSeconds(5)).trustInbound())
+					.GET("/public", new DeadlineHandler())
+					.GET("/internal", new DeadlineHandler())
+					.notFound(new Handler404())
+			)
+		);
+
+		for (String path : Arrays.asList("/public", "/internal")) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet(path)
+				.setHeader(Deadline.HEADER, "1")
+				.toBlocking()
+				.toFuture()
+				.get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(path, "/public".equals(path) ? 200 : 504, response.getStatus().code());
+		}
+		server.shutdown();
+	}
+
+	private static class DeadlineHandler implements RequestHandler<ByteBuf, ByteBuf> {
+		@Override
+		public Observable<Void> handle(HttpServerRequest<ByteBuf> request, HttpServerResponse<ByteBuf> response) {
+			return Observable.timer(100, TimeUnit.MILLISECONDS)
+				.flatMap(tick -> response.writeString(just("in time")));
+		}
+	}
+
+	@Test
+	public void shouldRunBlockingRouteOffTheEventLoop() throws Exception {
+		Blocking<ByteBuf, ByteBuf> blocking = Blocking.onThreads("jdbc", 1, 0);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/legacy", blocking.applyTo((request, response) ->
+						response.writeString(just(Thread.currentThread().getName()))
+					))
+					.notFound(new Handler404())
+			)
+		);
+
+		HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+			.createGet("/legacy")
+			.toBlocking()
+			.first();
+		Assert.assertEquals("jdbc-1", content(response));
+		Assert.assertEquals(0, blocking.getRejected());
+		blocking.shutdown();
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldHoldBlockingSlotUntilHandlerReturns() throws Exception {
+		Blocking<ByteBuf, ByteBuf> blocking = Blocking.onThreads("jdbc", 1, 0);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		Observable<Void> handled = blocking.filter(Collections.emptyMap(), null, null, (params, request, response) -> {
+			started.countDown();
+			try {
+				proceed.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return Observable.empty();
+		});
+
+		Subscription subscription = handled.subscribe();
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		// unsubscribed while the handler is still blocked, as by a deadline
+		subscription.unsubscribe();
+		Assert.assertEquals(1, blocking.getPending());
+
+		proceed.countDown();
+		for (int i = 0; i < 1000 && blocking.getPending() > 0; i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, blocking.getPending());
+		blocking.shutdown();
+	}
+
+	@Test
+	public void shouldReplayCachedResponseWithoutRunningRoute() throws Exception {
+		final List<String> rendered = new ArrayList<>();
+		ResponseCache<ByteBuf> cache = new ResponseCache<>(Duration.ofMinutes(1), 1024 * 1024);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/catalog/:section", cache.cached((params, request, response) -> {
+						rendered.add(params.get("section"));
+						response.setHeader("X-Section", params.get("section"));
+						return just(Unpooled.copiedBuffer("catalog " + params.get("section"), Charset.defaultCharset()));
+					}))
+					.notFound(new Handler404())
+			)
+		);
+
+		for (int i = 0; i < 3; i++) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet("/catalog/books")
+				.toBlocking()
+				.first();
+			Assert.assertEquals("catalog books", content(response));
+			Assert.assertEquals("books", response.getHeader("X-Section"));
+		}
+		HttpClientResponse<ByteBuf> other = newClient("localhost", server.getServerPort())
+			.createGet("/catalog/music")
+			.toBlocking()
+			.first();
+		Assert.assertEquals("catalog music", content(other));
+		Assert.assertEquals(Arrays.asList("books", "music"), rendered);
+		Assert.assertEquals("catalog books".length() + "catalog music".length(), cache.size());
+		cache.clear();
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldNotCachePrivateResponses() throws Exception {
+		final AtomicInteger rendered = new AtomicInteger();
+		ResponseCache<ByteBuf> cache = new ResponseCache<>(Duration.ofMinutes(1), 1024 * 1024);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/session", cache.cached((params, request, response) -> {
+						response.setHeader("Set-Cookie", "session=" + rendered.incrementAndGet());
+						return just(Unpooled.copiedBuffer("welcome", Charset.defaultCharset()));
+					}))
+					.GET("/account", cache.cached((params, request, response) -> {
+						response.setHeader("Cache-Control", "max-age=60, private");
+						return just(Unpooled.copiedBuffer("account " + rendered.incrementAndGet(), Charset.defaultCharset()));
+					}))
+					.notFound(new Handler404())
+			)
+		);
+
+		for (String path : Arrays.asList("/session", "/session", "/account", "/account")) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet(path)
+				.toBlocking()
+				.first();
+			content(response);
+		}
+		Assert.assertEquals(4, rendered.get());
+		Assert.assertEquals(0, cache.size());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldCacheEachQueryStringSeparately() throws Exception {
+		final List<String> rendered = new ArrayList<>();
+		ResponseCache<ByteBuf> cache = new ResponseCache<>(Duration.ofMinutes(1), 1024 * 1024);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/catalog", cache.cached((params, request, response) -> {
+						String page = request.getQueryParameters().get("page").get(0);
+						rendered.add(page);
+						return just(Unpooled.copiedBuffer("page " + page, Charset.defaultCharset()));
+					}))
+					.notFound(new Handler404())
+			)
+		);
+
+		for (String page : Arrays.asList("1", "2", "1", "2")) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet("/catalog?page=" + page)
+				.toBlocking()
+				.first();
+			Assert.assertEquals("page " + page, content(response));
+		}
+		Assert.assertEquals(Arrays.asList("1", "2"), rendered);
+		cache.clear();
+		Assert.assertEquals(0, cache.size());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedResponses() throws Exception {
+		ResponseCache<ByteBuf> cache = new ResponseCache<>(Duration.ofMinutes(1), 40);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/blocks/:id", cache.cached((params, request, response) ->
+						just(Unpooled.copiedBuffer(params.get("id") + "123456789", Charset.defaultCharset()))))
+					.notFound(new Handler404())
+			)
+		);
+
+		for (String id : Arrays.asList("0", "1", "2", "3", "0", "4")) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet("/blocks/" + id)
+				.toBlocking()
+				.first();
+			Assert.assertEquals(id + "123456789", content(response));
+		}
+		Assert.assertTrue(cache.size() <= 30);
+		cache.clear();
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldShareOneRunBetweenConcurrentRequests() throws Exception {
+		final PublishSubject<ByteBuf> body = PublishSubject.create();
+		final AtomicInteger runs = new AtomicInteger();
+		SingleFlight<ByteBuf> singleFlight = new SingleFlight<>();
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/prices/:sku", singleFlight.coalesced((params, request, response) -> {
+						response.setHeader("X-Run", runs.incrementAndGet());
+						return body;
+					}))
+					.notFound(new Handler404())
+			)
+		);
+
+		List<Future<String>> responses = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			responses.add(
+				newClient("localhost", server.getServerPort())
+					.createGet("/prices/42")
+					.flatMap(response -> response.getContent()
+						.map(b -> response.getHeader("X-Run") + " " + b.toString(Charset.defaultCharset())))
+					.toBlocking()
+					.toFuture()
+			);
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (singleFlight.getCoalesced() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		body.onNext(Unpooled.copiedBuffer("9.99", Charset.defaultCharset()));
+		body.onCompleted();
+
+		for (Future<String> response : responses) {
+			Assert.assertEquals("1 9.99", response.get(10, TimeUnit.SECONDS));
+		}
+		Assert.assertEquals(1, runs.get());
+		Assert.assertEquals(0, singleFlight.getInFlight());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldNotShareRunsBetweenQueryStrings() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		SingleFlight<ByteBuf> singleFlight = new SingleFlight<>();
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/prices", singleFlight.coalesced((params, request, response) -> {
+						runs.incrementAndGet();
+						String sku = request.getQueryParameters().get("sku").get(0);
+						return just(Unpooled.copiedBuffer(sku, Charset.defaultCharset())).delay(200, TimeUnit.MILLISECONDS);
+					}))
+					.notFound(new Handler404())
+			)
+		);
+
+		Map<String, Future<String>> responses = new ConcurrentHashMap<>();
+		for (String sku : Arrays.asList("41", "42")) {
+			responses.put(sku,
+				newClient("localhost", server.getServerPort())
+					.createGet("/prices?sku=" + sku)
+					.flatMap(response -> response.getContent().map(b -> b.toString(Charset.defaultCharset())))
+					.toBlocking()
+					.toFuture()
+			);
+		}
+		for (Map.Entry<String, Future<String>> response : responses.entrySet()) {
+			Assert.assertEquals(response.getKey(), response.getValue().get(10, TimeUnit.SECONDS));
+		}
+		Assert.assertEquals(2, runs.get());
+		Assert.assertEquals(0, singleFlight.getCoalesced());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldCompressOnlyLargeEnoughAcceptedResponses() throws Exception {
+		final String json = "[" + String.join(",", Collections.nCopies(500, "{\"id\":1}")) + "]";
+		Compression<ByteBuf> compression = Compression.gzip(1024);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/json/:size", compression.compressed((params, request, response) -> {
+						response.setHeader("Content-Type", "application/json");
+						String body = "large".equals(params.get("size")) ? json : "[]";
+						int half = body.length() / 2;
+						return Observable.just(body.substring(0, half), body.substring(half))
+							.map(part -> Unpooled.copiedBuffer(part, Charset.defaultCharset()));
+					}))
+					.notFound(new Handler404())
+			)
+		);
+
+		HttpClientResponse<ByteBuf> compressed = newClient("localhost", server.getServerPort())
+			.createGet("/json/large")
+			.setHeader("Accept-Encoding", "gzip, deflate")
+			.toBlocking()
+			.first();
+		Assert.assertEquals("gzip", compressed.getHeader("Content-Encoding"));
+		Assert.assertEquals(json, gunzip(compressed));
+
+		HttpClientResponse<ByteBuf> small = newClient("localhost", server.getServerPort())
+			.createGet("/json/small")
+			.setHeader("Accept-Encoding", "gzip")
+			.toBlocking()
+			.first();
+		Assert.assertNull(small.getHeader("Content-Encoding"));
+		Assert.assertEquals("[]", content(small));
+
+		HttpClientResponse<ByteBuf> refused = newClient("localhost", server.getServerPort())
+			.createGet("/json/large")
+			.setHeader("Accept-Encoding", "gzip;q=0")
+			.toBlocking()
+			.first();
+		Assert.assertNull(refused.getHeader("Content-Encoding"));
+		Assert.assertEquals(json, content(refused));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldServeConstantResponse() throws Exception {
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/robots.txt", ConstantResponse.<ByteBuf>ok("text/plain", "User-agent: *\n")
+						.withHeader("Cache-Control", "max-age=86400"))
+					.notFound(new Handler404())
+			)
+		);
+
+		for (int i = 0; i < 2; i++) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet("/robots.txt")
+				.toBlocking()
+				.first();
+			Assert.assertEquals(200, response.getStatus().code());
+			Assert.assertEquals("text/plain", response.getHeader("Content-Type"));
+			Assert.assertEquals("max-age=86400", response.getHeader("Cache-Control"));
+			Assert.assertEquals("User-agent: *\n", content(response));
+		}
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldAnswerImpossiblePathsWithoutRouting() throws Exception {
+		Router<ByteBuf, ByteBuf> router = new Router<ByteBuf, ByteBuf>()
+			.GET("/health", ConstantResponse.<ByteBuf>ok("text/plain", "OK"))
+			.GET("/articles/:id", withParams((params, request, response) -> response.writeString(just(params.get("id")))))
+			.notFound(ConstantResponse.<ByteBuf>notFound());
+		Assert.assertTrue(router.canMatch("/articles/1"));
+		Assert.assertTrue(router.canMatch("/health/"));
+		Assert.assertTrue(router.canMatch("//odd"));
+		Assert.assertFalse(router.canMatch("/wp-admin/setup.php"));
+		Assert.assertFalse(router.canMatch("/articles/1/comments"));
+		router.maxPathLength(16);
+		Assert.assertFalse(router.canMatch("/articles/0123456789"));
+
+		MissCounter misses = new MissCounter(256);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(using(router).countingMisses(misses));
+		for (int i = 0; i < 3; i++) {
+			HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+				.createGet("/wp-login.php")
+				.toBlocking()
+				.first();
+			Assert.assertEquals(404, response.getStatus().code());
+			Assert.assertEquals("Not Found", content(response));
+		}
+		Assert.assertEquals("42", content(newClient("localhost", server.getServerPort()).createGet("/articles/42").toBlocking().first()));
+		Assert.assertEquals(3, misses.estimate("/wp-login.php"));
+		Assert.assertEquals(3, misses.getTotal());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldCreateLazyHandlersOnce() throws Exception {
+		AtomicInteger built = new AtomicInteger();
+		List<String> threads = new ArrayList<>();
+		LazyHandlers<ByteBuf, ByteBuf> lazy = new LazyHandlers<>();
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+			using(
+				new Router<ByteBuf, ByteBuf>()
+					.GET("/reports/:id", lazy.of(() -> {
+						built.incrementAndGet();
+						threads.add(Thread.currentThread().getName());
+						return withParams((params, request, response) -> response.writeString(just("report " + params.get("id"))));
+					}))
+					.GET("/busy", lazy.of(() -> {
+						built.incrementAndGet();
+						return new HelloHandler();
+					}, 10))
+					.GET("/rare", lazy.of(() -> {
+						built.incrementAndGet();
+						return new HelloHandler();
+					}))
+					.notFound(new Handler404())
+			)
+		);
+		Assert.assertEquals(0, built.get());
+
+		for (int i = 0; i < 2; i++) {
+			Assert.assertEquals("report 7", content(newClient("localhost", server.getServerPort()).createGet("/reports/7").toBlocking().first()));
+		}
+		Assert.assertEquals(1, built.get());
+		Assert.assertTrue(threads.get(0), threads.get(0).startsWith("RxIoScheduler"));
+
+		lazy.warmUp(1).toBlocking().lastOrDefault(null);
+		Assert.assertEquals(2, built.get());
+		Assert.assertEquals(2, lazy.getCreated());
+		Assert.assertEquals("Hello!", content(newClient("localhost", server.getServerPort()).createGet("/busy").toBlocking().first()));
+		Assert.assertEquals(2, built.get());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldWarmUpSafeRoutesWithSampleParams() throws Exception {
+		List<String> seen = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger posts = new AtomicInteger();
+		Router<ByteBuf, ByteBuf> router = new Router<ByteBuf, ByteBuf>()
+			.GET("/articles/:id", withParams((params, request, response) -> {
+				seen.add(params.get("id") + " " + request.getHeader(WarmUp.HEADER));
+				return response.writeString(just("article"));
+			}))
+			.POST("/articles", (request, response) -> {
+				posts.incrementAndGet();
+				return response.writeString(just("created"));
+			})
+			.notFound(new Handler404());
+		WarmUp warmUp = WarmUp.of(router).param("id", "42").rounds(5);
+		Assert.assertEquals("/articles/42/warm-up", warmUp.samplePath("/articles/:id/:*"));
+
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(using(router));
+		Assert.assertEquals(5, warmUp.run(server));
+		Assert.assertEquals(Collections.nCopies(5, "42 1"), seen);
+		Assert.assertEquals(0, posts.get());
+		Assert.assertTrue(WarmUp.of(router).untilStable(10, 50).run(server) < 50);
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldBindRoutesReadFromRouteTable() throws Exception {
+		File file = File.createTempFile("routes", ".bin");
+		file.deleteOnExit();
+		RouteTable.builder()
+			.route("articles.get", "/articles/:id", HttpMethod.GET)
+			.routeFirst("articles.latest", "/articles/latest", HttpMethod.GET)
+			.route("hello", "/hello")
+			.build()
+			.write(file.toPath());
+
+		RouteTable table = RouteTable.read(file.toPath());
+		Assert.assertEquals(Arrays.asList("articles.get", "articles.latest", "hello"), table.getIds());
+		Router<ByteBuf, ByteBuf> router = table.bind(new Router<ByteBuf, ByteBuf>(), id -> "hello".equals(id)
+			? new HelloHandler()
+			: withParams((params, request, response) -> response.writeString(just(id + " " + params))))
+			.notFound(new Handler404());
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(using(router));
+
+		Assert.assertEquals("articles.latest {}", content(newClient("localhost", server.getServerPort()).createGet("/articles/latest").toBlocking().first()));
+		Assert.assertEquals("articles.get {id=7}", content(newClient("localhost", server.getServerPort()).createGet("/articles/7").toBlocking().first()));
+		Assert.assertEquals("Hello!", content(newClient("localhost", server.getServerPort()).createPost("/hello").toBlocking().first()));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldRejectCorruptRouteTable() throws Exception {
+		File file = File.createTempFile("routes", ".bin");
+		file.deleteOnExit();
+		RouteTable.builder().route("hello", "/hello").build().write(file.toPath());
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		// claims Integer.MAX_VALUE routes
+		bytes[6] = 0x7f;
+		bytes[7] = bytes[8] = bytes[9] = (byte) 0xff;
+		Files.write(file.toPath(), bytes);
+		try {
+			RouteTable.read(file.toPath());
+			Assert.fail("a route count larger than the file should be rejected");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectRouteTooLongForRouteTable() {
+		RouteTable.builder().route("long", "/" + String.join("", Collections.nCopies(70000, "a")));
+	}
+
+	@Test
+	public void shouldRouteLikeJauterWithCompactStorage() throws Exception {
+		Router<ByteBuf, ByteBuf> regular = new Router<>();
+		Router<ByteBuf, ByteBuf> compact = new Router<ByteBuf, ByteBuf>().compact();
+		List<RequestHandler<ByteBuf, ByteBuf>> handlers = new ArrayList<>();
+		for (int i = 0; i < 9; i++) {
+			handlers.add(new HelloHandler());
+		}
+		for (Router<ByteBuf, ByteBuf> router : Arrays.asList(regular, compact)) {
+			router
+				.GET("/articles/:id", handlers.get(0))
+				.GET_FIRST("/articles/latest", handlers.get(1))
+				.GET("/articles/:id/comments/:comment", handlers.get(2))
+				.GET_LAST("/articles/:slug", handlers.get(3))
+				.POST("/articles", handlers.get(4))
+				.ANY("/health", handlers.get(5))
+				.GET("/public/:*", handlers.get(6))
+				.GET("/users/:user/files/:*", handlers.get(7))
+				.notFound(handlers.get(8));
+		}
+		for (String path : Arrays.asList("/articles/1", "/articles/latest", "/articles/1/comments/2", "/articles",
+			"/health", "/public/css/site.css", "/public/x", "/users/7/files/a/b", "/other/path", "/", "//articles//1/")) {
+			for (HttpMethod method : Arrays.asList(HttpMethod.GET, HttpMethod.POST, HttpMethod.DELETE)) {
+				Routed<RequestHandler<ByteBuf, ByteBuf>> expected = regular.route(method, path);
+				Routed<RequestHandler<ByteBuf, ByteBuf>> actual = compact.route(method, path);
+				String request = method + " " + path;
+				Assert.assertSame(request, expected.target(), actual.target());
+				Assert.assertEquals(request, expected.params(), actual.params());
+				Assert.assertEquals(request, expected.notFound(), actual.notFound());
+			}
+			Assert.assertEquals(path, new HashSet<>(regular.getMethodsFor(path)), new HashSet<>(compact.getMethodsFor(path)));
+		}
+		for (int i = 0; i < 9; i++) {
+			RequestHandler<ByteBuf, ByteBuf> target = handlers.get(i);
+			for (Object[] params : Arrays.asList(new Object[0], new Object[] {"id", 1}, new Object[] {"id", 1, "comment", 2},
+				new Object[] {"slug", "a b", "page", 2}, new Object[] {"*", "css/site.css", "user", 7})) {
+				String reverse = i + " " + Arrays.toString(params);
+				Assert.assertEquals(reverse, regular.path(target, params), compact.path(target, params));
+				for (HttpMethod method : Arrays.asList(null, HttpMethod.GET, HttpMethod.POST)) {
+					Assert.assertEquals(method + " " + reverse, regular.path(method, target, params), compact.path(method, target, params));
+				}
+			}
+		}
+		Assert.assertEquals("/articles/1?q=a+b", compact.path(handlers.get(0), "id", 1, "q", "a b"));
+
+		compact.removeTarget(handlers.get(1));
+		Assert.assertSame(handlers.get(0), compact.route(HttpMethod.GET, "/articles/latest").target());
+		Assert.assertTrue(compact.getPaths().contains("/articles/:id/comments/:comment"));
+		Assert.assertTrue(compact.getEstimatedBytesPerRoute() > 0);
+		Assert.assertEquals(-1, regular.getEstimatedBytesPerRoute());
+	}
+
+	@Test
+	public void shouldLoadTenantRoutersOnceAndEvictLeastRecentlyUsed() throws Exception {
+		Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+		CountDownLatch release = new CountDownLatch(1);
+		TenantDispatch<ByteBuf, ByteBuf> tenants = TenantDispatch.<ByteBuf, ByteBuf>of(TenantDispatch.header("X-Tenant"), tenant -> {
+			if ("unknown".equals(tenant)) {
+				return null;
+			}
+			loads.computeIfAbsent(tenant, t -> new AtomicInteger()).incrementAndGet();
+			release.await(10, TimeUnit.SECONDS);
+			return router -> router.GET("/hello", (request, response) -> response.writeString(just("hello " + tenant)));
+		}, 1);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(tenants);
+
+		List<Future<String>> responses = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			responses.add(
+				newClient("localhost", server.getServerPort())
+					.createGet("/hello")
+					.addHeader("X-Tenant", "a")
+					.flatMap(response -> response.getContent().map(b -> b.toString(Charset.defaultCharset())))
+					.toBlocking()
+					.toFuture()
+			);
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (tenants.getCoalesced() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		for (Future<String> response : responses) {
+			Assert.assertEquals("hello a", response.get(10, TimeUnit.SECONDS));
+		}
+		Assert.assertEquals(1, loads.get("a").get());
+
+		Assert.assertEquals("hello b", content(newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "b").toBlocking().first()));
+		Assert.assertEquals(1, tenants.size());
+		Assert.assertEquals("hello a", content(newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "a").toBlocking().first()));
+		Assert.assertEquals(2, loads.get("a").get());
+		Assert.assertEquals(404, newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "unknown").toBlocking().first().getStatus().code());
+		Assert.assertEquals(404, newClient("localhost", server.getServerPort()).createGet("/hello").toBlocking().first().getStatus().code());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldRememberUnknownTenantsAndBoundTenantLoads() throws Exception {
+		Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+		CountDownLatch release = new CountDownLatch(1);
+		TenantDispatch<ByteBuf, ByteBuf> tenants = TenantDispatch.<ByteBuf, ByteBuf>of(TenantDispatch.header("X-Tenant"), tenant -> {
+			loads.computeIfAbsent(tenant, t -> new AtomicInteger()).incrementAndGet();
+			if ("unknown".equals(tenant)) {
+				return null;
+			}
+			if ("slow".equals(tenant)) {
+				release.await(10, TimeUnit.SECONDS);
+			}
+			return router -> router
+				.GET("/hello", (request, response) -> response.writeString(just("hello " + tenant)))
+				.GET("/bye", (request, response) -> response.writeString(just("bye " + tenant)));
+		}, 1).maxConcurrentLoads(1);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(tenants);
+
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(404, newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "unknown").toBlocking().first().getStatus().code());
+		}
+		Assert.assertEquals(1, loads.get("unknown").get());
+
+		// heavier than the whole cache, served but not kept
+		Assert.assertEquals("hello a", content(newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "a").toBlocking().first()));
+		Assert.assertEquals(0, tenants.size());
+		Assert.assertEquals(0, tenants.getWeight());
+
+		Future<String> slow = newClient("localhost", server.getServerPort())
+			.createGet("/hello")
+			.addHeader("X-Tenant", "slow")
+			.flatMap(response -> response.getContent().map(b -> b.toString(Charset.defaultCharset())))
+			.toBlocking()
+			.toFuture();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!loads.containsKey("slow") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(503, newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "b").toBlocking().first().getStatus().code());
+		Assert.assertEquals(1, tenants.getRejected());
+		release.countDown();
+		Assert.assertEquals("hello slow", slow.get(10, TimeUnit.SECONDS));
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldStartTenantLoadsOnlyWhenSubscribed() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		TenantDispatch<ByteBuf, ByteBuf> tenants = TenantDispatch.<ByteBuf, ByteBuf>of(request -> "a", tenant -> {
+			loads.incrementAndGet();
+			return router -> router.GET("/hello", (request, response) -> response.writeString(just("hello " + tenant)));
+		}, 1).maxConcurrentLoads(1);
+
+		// a request that is never subscribed neither loads the tenant nor holds the only load slot
+		tenants.handle(null, null);
+		Assert.assertEquals(0, loads.get());
+
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(tenants);
+		Assert.assertEquals("hello a", content(newClient("localhost", server.getServerPort()).createGet("/hello").toBlocking().first()));
+		Assert.assertEquals(1, loads.get());
+		Assert.assertEquals(0, tenants.getRejected());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldEvictTenantsInBatches() throws Exception {
+		TenantDispatch<ByteBuf, ByteBuf> tenants = TenantDispatch.<ByteBuf, ByteBuf>of(TenantDispatch.header("X-Tenant"), tenant ->
+			router -> router.GET("/hello", (request, response) -> response.writeString(just("hello " + tenant))), 8);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(tenants);
+
+		for (int i = 0; i < 9; i++) {
+			Assert.assertEquals("hello " + i, content(newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", Integer.toString(i)).toBlocking().first()));
+		}
+		// one over the weight of 8 evicts down to 6
+		Assert.assertEquals(6, tenants.size());
+		Assert.assertEquals(6, tenants.getWeight());
+		Assert.assertEquals("hello 8", content(newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "8").toBlocking().first()));
+		Assert.assertEquals(9, tenants.getLoaded());
+		server.shutdown();
+	}
+
+	@Test
+	public void shouldRejectOversizedTenantWithoutReloading() throws Exception {
+		TenantDispatch<ByteBuf, ByteBuf> tenants = TenantDispatch.<ByteBuf, ByteBuf>of(TenantDispatch.header("X-Tenant"), tenant ->
+			router -> router
+				.GET("/hello", (request, response) -> response.writeString(just("hello " + tenant)))
+				.GET("/bye", (request, response) -> response.writeString(just("bye " + tenant))), 1);
+		HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(tenants);
+
+		// the request that waited for the load is served, the next ones are rejected without loading again
+		Assert.assertEquals("hello big", content(newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "big").toBlocking().first()));
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(503, newClient("localhost", server.getServerPort()).createGet("/hello").addHeader("X-Tenant", "big").toBlocking().first().getStatus().code());
+		}
+		Assert.assertEquals(1, tenants.getLoaded());
+		Assert.assertEquals(3, tenants.getRejected());
+		Assert.assertEquals(0, tenants.size());
+
+		tenants.evict("big");
+		Assert.assertEquals("bye big", content(newClient("localhost", server.getServerPort()).createGet("/bye").addHeader("X-Tenant", "big").toBlocking().first()));
+		Assert.assertEquals(2, tenants.getLoaded());
+		server.shutdown();
+	}
+
+	private static String content(HttpClientResponse<ByteBuf> response) {
+		return response.getContent()
+			.map(b -> b.toString(Charset.defaultCharset()))
+			.reduce("", (acc, s) -> acc + s)
+			.toBlocking()
+			.single();
+	}
+
+	private static String gunzip(HttpClientResponse<ByteBuf> response) throws IOException {
+		byte[] compressed = response.getContent()
+			.reduce(new byte[0], (acc, b) -> {
+				byte[] next = new byte[acc.length + b.readableBytes()];
+				System.arraycopy(acc, 0, next, 0, acc.length);
+				b.readBytes(next, acc.length, b.readableBytes());
+				return next;
+			})
+			.toBlocking()
+			.single();
+		return new String(toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))), "UTF-8");
+	}
 }
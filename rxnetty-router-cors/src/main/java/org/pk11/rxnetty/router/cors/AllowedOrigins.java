@@ -0,0 +1,54 @@
+package org.pk11.rxnetty.router.cors;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+/**
+ * A hot-swappable set of allowed origins, see {@link Dispatch.CorsSettings#allowOrigins(AllowedOrigins)}.
+ *
+ * Entries are either exact origins ({@code https://example.com}), wildcard origins using '*' as
+ * scheme, port or leading host label ({@code https://*.tenant.example.com}, {@code *://example.com:*}),
+ * or "*" to allow any origin. Regular expressions can be added for anything else, but unlike
+ * the other entries they are evaluated one by one.
+ *
+ * An empty set allows no origin at all.
+ */
+public class AllowedOrigins {
+  private volatile OriginMatcher matcher;
+
+  private AllowedOrigins(OriginMatcher matcher) {
+    this.matcher = matcher;
+  }
+
+  public static AllowedOrigins of(String... origins) {
+    return of(Arrays.asList(origins), Collections.emptyList());
+  }
+
+  public static AllowedOrigins of(Collection<String> origins, Collection<Pattern> patterns) {
+    return new AllowedOrigins(new OriginMatcher(origins, patterns));
+  }
+
+  /**
+   * Atomically replaces the allowed origins. Requests already being handled are not affected.
+   */
+  public void set(Collection<String> origins) {
+    set(origins, Collections.emptyList());
+  }
+
+  /**
+   * Atomically replaces the allowed origins and patterns. Requests already being handled are not affected.
+   */
+  public void set(Collection<String> origins, Collection<Pattern> patterns) {
+    matcher = new OriginMatcher(origins, patterns);
+  }
+
+  public boolean isAllowed(String origin) {
+    return matcher.matches(origin);
+  }
+
+  OriginMatcher matcher() {
+    return matcher;
+  }
+}
@@ -0,0 +1,164 @@
+package org.pk11.rxnetty.router.cors;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import org.pk11.rxnetty.router.cors.Dispatch.AuthorisationHandler;
+import rx.Observable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Caches the decisions of an AuthorisationHandler for preflight requests.
+ *
+ * Requests are keyed by a fingerprint, by default the requested method, path and Origin plus a hash of
+ * the Authorization and Cookie headers. Decisions are kept for a fixed time to live, and concurrent
+ * lookups for the same key share a single subscription to the delegate. Failed lookups are not cached.
+ * Once there are more keys than the maximum size, the oldest are evicted until a quarter of the
+ * slots is free again, so the cost of eviction is spread over many lookups.
+ */
+public class CachingAuthorisationHandler implements AuthorisationHandler {
+
+  private final AuthorisationHandler delegate;
+  private final Function<HttpServerRequest<?>, String> fingerprint;
+  private final long ttlNanos;
+  private final int maxSize;
+  private final int lowWaterSize;
+  private final Map<String, Decision> decisions = new ConcurrentHashMap<>();
+
+  public CachingAuthorisationHandler(AuthorisationHandler delegate, Duration ttl, int maxSize) {
+    this(delegate, ttl, maxSize, CachingAuthorisationHandler::requestAndCredentials);
+  }
+
+  /**
+   * @param fingerprint
+   *            computes the cache key of a request; requests with a null key are not cached
+   */
+  public CachingAuthorisationHandler(
+    AuthorisationHandler delegate,
+    Duration ttl,
+    int maxSize,
+    Function<HttpServerRequest<?>, String> fingerprint
+  ) {
+    this.delegate = delegate;
+    this.fingerprint = fingerprint;
+    this.ttlNanos = ttl.toNanos();
+    this.maxSize = maxSize;
+    this.lowWaterSize = maxSize - maxSize / 4;
+  }
+
+  @Override
+  public Observable<Boolean> allow(HttpServerRequest<?> request) {
+    String key = fingerprint.apply(request);
+    if (key == null) {
+      return delegate.allow(request);
+    }
+    long now = System.nanoTime();
+    Decision decision = decisions.get(key);
+    if (decision == null || decision.isExpiredAt(now)) {
+      decision = decisions.compute(
+        key,
+        (k, existing) -> existing != null && !existing.isExpiredAt(now) ? existing : new Decision(k, request, now)
+      );
+      if (decisions.size() > maxSize) {
+        evict(now);
+      }
+    }
+    return decision.get();
+  }
+
+  public int size() {
+    return decisions.size();
+  }
+
+  private synchronized void evict(long now) {
+    if (decisions.size() <= maxSize) {
+      return;
+    }
+    decisions.values().removeIf(decision -> decision.isExpiredAt(now));
+    int excess = decisions.size() - lowWaterSize;
+    if (decisions.size() <= maxSize || excess <= 0) {
+      return;
+    }
+    List<Map.Entry<String, Decision>> oldest = new ArrayList<>(decisions.entrySet());
+    oldest.sort(Comparator.comparingLong(entry -> entry.getValue().expiresAt - now));
+    for (Map.Entry<String, Decision> entry : oldest.subList(0, Math.min(excess, oldest.size()))) {
+      decisions.remove(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * The default fingerprint: the method asked for by a preflight, or else the request method, the path,
+   * and the Origin plus a SHA-256 hash of the Authorization and Cookie headers.
+   */
+  public static String requestAndCredentials(HttpServerRequest<?> request) {
+    String method = request.getHeader(HttpHeaderNames.ACCESS_CONTROL_REQUEST_METHOD);
+    return (method != null ? method : request.getHttpMethod().name())
+      + ' ' + request.getDecodedPath()
+      + ' ' + originAndCredentials(request);
+  }
+
+  /**
+   * The Origin plus a SHA-256 hash of the Authorization and Cookie headers. Decisions are shared by
+   * all paths and methods, so only use it if the AuthorisationHandler does not look at them.
+   */
+  public static String originAndCredentials(HttpServerRequest<?> request) {
+    String authorization = request.getHeader(HttpHeaderNames.AUTHORIZATION);
+    String cookie = request.getHeader(HttpHeaderNames.COOKIE);
+    String origin = request.getHeader(HttpHeaderNames.ORIGIN, "");
+    if (authorization == null && cookie == null) {
+      return origin;
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+    if (authorization != null) {
+      digest.update(authorization.getBytes(StandardCharsets.UTF_8));
+    }
+    digest.update((byte) 0);
+    if (cookie != null) {
+      digest.update(cookie.getBytes(StandardCharsets.UTF_8));
+    }
+    return origin + ' ' + Base64.getEncoder().encodeToString(digest.digest());
+  }
+
+  private class Decision {
+    private final long expiresAt;
+    // dropped once the delegate has decided, so the first request is not kept for the time to live
+    private volatile Observable<Boolean> pending;
+    private volatile Boolean allowed;
+
+    private Decision(String key, HttpServerRequest<?> request, long now) {
+      this.expiresAt = now + ttlNanos;
+      this.pending = Observable.defer(() -> delegate.allow(request))
+        .defaultIfEmpty(false)
+        .take(1)
+        .doOnNext(result -> allowed = result)
+        .doOnCompleted(() -> pending = null)
+        .doOnError(e -> decisions.remove(key, this))
+        .cache();
+    }
+
+    private Observable<Boolean> get() {
+      Observable<Boolean> result = pending;
+      // allowed is set before pending is dropped
+      return result != null ? result : Observable.just(allowed);
+    }
+
+    private boolean isExpiredAt(long now) {
+      return now - expiresAt >= 0;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package org.pk11.rxnetty.router.cors;
+
+import io.netty.util.AsciiString;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, pre-encoded set of response headers that is applied to a response in one step.
+ */
+final class CorsHeaders {
+  static final CorsHeaders EMPTY = new CorsHeaders(new AsciiString[0], new AsciiString[0]);
+
+  private final AsciiString[] names;
+  private final AsciiString[] values;
+
+  private CorsHeaders(AsciiString[] names, AsciiString[] values) {
+    this.names = names;
+    this.values = values;
+  }
+
+  CorsHeaders with(CharSequence name, CharSequence value) {
+    AsciiString[] newNames = Arrays.copyOf(names, names.length + 1);
+    AsciiString[] newValues = Arrays.copyOf(values, values.length + 1);
+    newNames[names.length] = AsciiString.of(name);
+    newValues[values.length] = AsciiString.of(value);
+    return new CorsHeaders(newNames, newValues);
+  }
+
+  CorsHeaders with(CorsHeaders other) {
+    CorsHeaders result = this;
+    for (int i = 0; i < other.names.length; i++) {
+      result = result.with(other.names[i], other.values[i]);
+    }
+    return result;
+  }
+
+  void applyTo(HttpServerResponse<?> response) {
+    for (int i = 0; i < names.length; i++) {
+      response.setHeader(names[i], values[i]);
+    }
+  }
+}
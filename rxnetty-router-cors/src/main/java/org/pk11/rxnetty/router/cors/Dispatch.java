@@ -6,130 +6,456 @@ import io.netty.util.AsciiString;
 import io.reactivex.netty.protocol.http.server.HttpServerRequest;
 import io.reactivex.netty.protocol.http.server.HttpServerResponse;
 import io.reactivex.netty.protocol.http.server.RequestHandler;
+import jauter.Routed;
+import org.pk11.rxnetty.router.FilteredRoute;
+import org.pk11.rxnetty.router.MissCounter;
+import org.pk11.rxnetty.router.Routable;
+import org.pk11.rxnetty.router.Route;
 import org.pk11.rxnetty.router.Router;
 import rx.Observable;
 
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
-import static org.pk11.rxnetty.router.Dispatch.using;
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_ALLOW_CREDENTIALS;
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS;
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS;
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN;
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_EXPOSE_HEADERS;
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_MAX_AGE;
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_REQUEST_HEADERS;
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_REQUEST_METHOD;
+import static io.netty.handler.codec.http.HttpHeaderNames.ORIGIN;
+import static org.pk11.rxnetty.router.Dispatch.dispatch;
+import static org.pk11.rxnetty.router.Dispatch.match;
 import static rx.Observable.just;
 
 public class Dispatch<I, O> implements RequestHandler<I, O> {
 
-  private final CorsSettings settings;
-  private final org.pk11.rxnetty.router.Dispatch<I, O> delegate;
+  private final Policy policy;
+  private final Router<I, O> router;
+  private final MissCounter misses;
+  private volatile Preflights preflights;
 
+  /**
+   * Applies the given settings to every route that has no settings of its own,
+   * see {@link #withCors(CorsSettings, RequestHandler)}.
+   */
   public static <I, O> Dispatch<I, O> usingCors(
     CorsSettings settings,
     Router<I, O> route
   ) {
-    Collection<String> optionPaths = route.getPaths();
-    optionPaths.forEach(
-      path ->
-        route.OPTIONS(path, getOptionsHandler(settings, route.getMethodsFor(path)))
-    );
-    return new Dispatch<>(settings, using(route));
+    return new Dispatch<>(new Policy(settings), route, null);
+  }
+
+  /**
+   * @param counter records the paths of requests that matched no route
+   */
+  public Dispatch<I, O> countingMisses(MissCounter counter) {
+    return new Dispatch<>(policy, router, counter);
+  }
+
+  /**
+   * Attaches settings to a single route, taking precedence over those given to {@link #usingCors}.
+   * The settings are resolved by the route match itself, so they cost nothing extra per request.
+   *
+   * Note the router only knows the returned handler, so it is the one to pass to {@code removeTarget}.
+   */
+  public static <I, O> RequestHandler<I, O> withCors(CorsSettings settings, RequestHandler<I, O> handler) {
+    return new CorsRoute<>(new Policy(settings), handler);
+  }
+
+  /**
+   * Registers the given routes under a path prefix, all sharing the given settings.
+   *
+   * {@code
+   *   router.register(withCors("/api", new CorsSettings().allowOrigin("https://app.example.com"), api -> api
+   *     .GET("/orders", ordersHandler)
+   *     .POST("/orders", createOrderHandler)))
+   * }
+   */
+  public static <I, O> Routable<I, O> withCors(String prefix, CorsSettings settings, Routable<I, O> routes) {
+    Policy policy = new Policy(settings);
+    return router -> routes.registerWith(new PrefixRouter<>(router, prefix, policy));
+  }
+
+  /**
+   * Excludes a single route from CORS: no CORS headers are added and requests from any origin are passed on.
+   */
+  public static <I, O> RequestHandler<I, O> withoutCors(RequestHandler<I, O> handler) {
+    return new CorsRoute<>(null, handler);
+  }
+
+  /**
+   * Registers the given routes under a path prefix, all excluded from CORS.
+   */
+  public static <I, O> Routable<I, O> withoutCors(String prefix, Routable<I, O> routes) {
+    return router -> routes.registerWith(new PrefixRouter<>(router, prefix, null));
+  }
+
+  private static boolean isCors(HttpServerRequest<?> request) {
+    return request.containsHeader(ORIGIN);
   }
 
-  private static <I, O> RequestHandler<I, O> getOptionsHandler(CorsSettings settings, Collection<HttpMethod> methods) {
-    List<String> availableMethods =
-      methods.stream().map(HttpMethod::asciiName).map(AsciiString::toString).sorted().collect(Collectors.toList());
-    List<String> allowedMethods = new ArrayList<>(availableMethods);
-    if (!settings.allowedMethods.isEmpty()) {
-      allowedMethods.retainAll(settings.allowedMethods);
+  private Dispatch(Policy policy, Router<I, O> router, MissCounter misses) {
+    this.policy = policy;
+    this.router = router;
+    this.misses = misses;
+    this.preflights = new Preflights(router.getVersion());
+  }
+
+  @Override
+  public Observable<Void> handle(HttpServerRequest<I> request, HttpServerResponse<O> response) {
+    String path = request.getDecodedPath();
+    if (HttpMethod.OPTIONS.equals(request.getHttpMethod())) {
+      Preflight preflight = preflightFor(path, request.getHeader(ACCESS_CONTROL_REQUEST_METHOD));
+      if (preflight != Preflight.DELEGATE) {
+        if (!applyOriginHeaders(preflight.policy, request, response)) {
+          return response.sendHeaders();
+        }
+        return preflight.handle(request, response);
+      }
+    }
+
+    Routed<RequestHandler<I, O>> routed = match(router, request.getHttpMethod(), path, misses);
+    if (!applyOriginHeaders(policyOf(routed.target()), request, response)) {
+      return response.sendHeaders();
     }
+    return dispatch(routed, request, response);
+  }
 
-    Collections.sort(availableMethods);
-    Collections.sort(allowedMethods);
+  /**
+   * @return false if the request is a CORS request from an origin the policy does not allow
+   */
+  private static boolean applyOriginHeaders(Policy policy, HttpServerRequest<?> request, HttpServerResponse<?> response) {
+    if (policy != null && isCors(request)) {
+      CorsHeaders headers = policy.forOrigin(request.getHeader(ORIGIN));
+      if (headers == null) {
+        return false;
+      }
+      headers.applyTo(response);
+    }
+    return true;
+  }
+
+  private Policy policyOf(RequestHandler<I, O> target) {
+    if (target instanceof FilteredRoute) {
+      target = ((FilteredRoute<I, O>) target).target();
+    }
+    return target instanceof CorsRoute ? ((CorsRoute<I, O>) target).policy : policy;
+  }
 
+  /**
+   * Answers for OPTIONS requests are derived from the routes registered when the request arrives.
+   * They are cached by path and requested method until the routes change, so a repeated preflight
+   * walks no routes. The cache is cleared once it holds too many paths; paths no route can match are
+   * never cached.
+   */
+  private Preflight preflightFor(String path, String requestedMethod) {
+    long version = router.getVersion();
+    Preflights current = preflights;
+    if (current.version != version) {
+      current = new Preflights(version);
+      preflights = current;
+    }
+    if (!router.canMatch(path)) {
+      return Preflight.DELEGATE;
+    }
+    List<String> key = Arrays.asList(path, requestedMethod);
+    Preflight preflight = current.byPath.get(key);
+    if (preflight == null) {
+      preflight = resolve(current, path, requestedMethod);
+      if (current.byPath.size() >= Preflights.MAX_CACHED_PATHS) {
+        current.byPath.clear();
+      }
+      current.byPath.put(key, preflight);
+    }
+    return preflight;
+  }
+
+  /**
+   * Walks the routes for the path. The answers are shared by the policies of the routes matching it
+   * and the requested method, so all paths of a parameterised route share one answer.
+   */
+  private Preflight resolve(Preflights current, String path, String requestedMethod) {
+    if (router.hasRoute(HttpMethod.OPTIONS, path)) {
+      return Preflight.DELEGATE;
+    }
+    List<HttpMethod> methods = new ArrayList<>(router.getMethodsFor(path));
+    if (methods.isEmpty()) {
+      return Preflight.DELEGATE;
+    }
+    methods.sort(Comparator.comparing(method -> method.asciiName().toString()));
+
+    Map<HttpMethod, Policy> policies = new LinkedHashMap<>();
+    for (HttpMethod method : methods) {
+      policies.put(method, policyOf(router.route(method, path).target()));
+    }
+    // the requested method is client input, one that is not routed selects nothing
+    HttpMethod selected = requestedMethod == null ? null : methods.stream()
+      .filter(method -> method.asciiName().contentEquals(requestedMethod))
+      .findFirst()
+      .orElse(null);
+    List<Object> key = Arrays.asList(selected, policies);
+    return current.byKey.computeIfAbsent(key, k -> newPreflight(methods, policies, selected));
+  }
+
+  /**
+   * The policy of a preflight is the one of the route for the requested method, or failing that
+   * of the first route for the path. Only methods sharing that policy are listed as allowed.
+   */
+  private static Preflight newPreflight(List<HttpMethod> methods, Map<HttpMethod, Policy> policies, HttpMethod selected) {
+    Policy preflightPolicy = policies.get(selected != null ? selected : methods.get(0));
+
+    List<String> availableMethods = methods.stream()
+      .map(HttpMethod::asciiName).map(AsciiString::toString).collect(Collectors.toList());
     String availableMethodsString = String.join(", ", availableMethods);
+    if (preflightPolicy == null) {
+      return new Preflight(null, availableMethodsString, CorsHeaders.EMPTY, CorsHeaders.EMPTY);
+    }
+
+    List<String> allowedMethods = methods.stream()
+      .filter(method -> policies.get(method) == preflightPolicy)
+      .map(HttpMethod::asciiName).map(AsciiString::toString).collect(Collectors.toList());
+    if (!preflightPolicy.settings.allowedMethods.isEmpty()) {
+      allowedMethods.retainAll(preflightPolicy.settings.allowedMethods);
+    }
     String allowedMethodsString = String.join(", ", allowedMethods);
-    return (request, response) ->
-      settings.authorisationHandler.allow(request)
+    return new Preflight(
+      preflightPolicy,
+      availableMethodsString,
+      preflightPolicy.preflight(allowedMethodsString, false),
+      preflightPolicy.preflight(allowedMethodsString, true)
+    );
+  }
+
+  private static class Preflights {
+    private static final int MAX_CACHED_PATHS = 4096;
+
+    private final long version;
+    private final Map<List<Object>, Preflight> byKey = new ConcurrentHashMap<>();
+    private final Map<List<String>, Preflight> byPath = new ConcurrentHashMap<>();
+
+    private Preflights(long version) {
+      this.version = version;
+    }
+  }
+
+  /**
+   * The pre-encoded answer to OPTIONS requests for one path.
+   */
+  private static class Preflight {
+    // the path has its own OPTIONS route, or no route at all
+    private static final Preflight DELEGATE = new Preflight(null, null, null, null);
+
+    // null when the routes are excluded from CORS
+    private final Policy policy;
+    private final String availableMethods;
+    private final CorsHeaders preflightHeaders;
+    private final CorsHeaders preflightHeadersWhenRequested;
+
+    private Preflight(
+      Policy policy,
+      String availableMethods,
+      CorsHeaders preflightHeaders,
+      CorsHeaders preflightHeadersWhenRequested
+    ) {
+      this.policy = policy;
+      this.availableMethods = availableMethods;
+      this.preflightHeaders = preflightHeaders;
+      this.preflightHeadersWhenRequested = preflightHeadersWhenRequested;
+    }
+
+    private <I, O> Observable<Void> handle(HttpServerRequest<I> request, HttpServerResponse<O> response) {
+      if (policy == null) {
+        return response.writeString(just(availableMethods));
+      }
+      return policy.settings.authorisationHandler.allow(request)
         .defaultIfEmpty(false)
         .flatMap(
           allow -> {
             if (allow) {
               if (isCors(request)) {
-                addPreflightOnlyHeaders(request, response, settings, allowedMethodsString);
+                (request.containsHeader(ACCESS_CONTROL_REQUEST_HEADERS) ? preflightHeadersWhenRequested : preflightHeaders)
+                  .applyTo(response);
               }
-              settings.headers.entrySet().forEach(
-                header ->
-                  response.setHeader(header.getKey(), header.getValue())
-              );
-              return response.writeString(just(availableMethodsString));
+              policy.headers.applyTo(response);
+              return response.writeString(just(availableMethods));
             } else {
               response.setStatus(HttpResponseStatus.UNAUTHORIZED);
               return response.sendHeaders();
             }
           }
         );
+    }
   }
 
-  private static boolean isCors(HttpServerRequest<?> request) {
-    return request.containsHeader("Origin");
-  }
+  /**
+   * A route carrying its own policy, null when it is excluded from CORS.
+   */
+  private static class CorsRoute<I, O> implements Route<I, O> {
+    private final Policy policy;
+    private final RequestHandler<I, O> handler;
 
-  private Dispatch(CorsSettings settings, org.pk11.rxnetty.router.Dispatch<I, O> delegate) {
-    this.settings = settings;
-    this.delegate = delegate;
-  }
+    private CorsRoute(Policy policy, RequestHandler<I, O> handler) {
+      this.policy = policy;
+      this.handler = handler;
+    }
 
-  @Override
-  public Observable<Void> handle(HttpServerRequest<I> request, HttpServerResponse<O> response) {
-    if (isCors(request)) {
-      String origin = request.getHeader("Origin");
-      if (originNotAllowed(origin)) {
-        return response.sendHeaders();
+    @Override
+    public Observable<Void> handle(Map<String, String> params, HttpServerRequest<I> request, HttpServerResponse<O> response) {
+      if (handler instanceof Route) {
+        return ((Route<I, O>) handler).handle(params, request, response);
       }
-      addSharedHeaders(response, origin);
-      addSimpleOnlyHeaders(response);
+      return handler.handle(request, response);
     }
-
-    return delegate.handle(request, response);
   }
 
-  private void addSimpleOnlyHeaders(HttpServerResponse<O> response) {
-    if (settings.exposedHeaders.length() > 0) {
-      response.setHeader("Access-Control-Expose-Headers", settings.exposedHeaders);
+  /**
+   * Registers routes with another router, under a path prefix and wrapped with a policy.
+   */
+  private static class PrefixRouter<I, O> extends Router<I, O> {
+    private final Router<I, O> target;
+    private final String prefix;
+    private final Policy policy;
+
+    private PrefixRouter(Router<I, O> target, String prefix, Policy policy) {
+      this.target = target;
+      this.prefix = prefix;
+      this.policy = policy;
     }
-  }
 
-  private static void addPreflightOnlyHeaders(
-    HttpServerRequest<?> request,
-    HttpServerResponse<?> response,
-    CorsSettings settings,
-    String allowedMethodsString
-  ) {
-    if (settings.maxAge != null) {
-      response.setHeader("Access-Control-Max-Age", settings.maxAge.get(ChronoUnit.SECONDS));
+    @Override
+    public Router<I, O> pattern(HttpMethod method, String path, RequestHandler<I, O> handler) {
+      target.pattern(method, prefix + path, new CorsRoute<>(policy, handler));
+      return this;
+    }
+
+    @Override
+    public Router<I, O> patternFirst(HttpMethod method, String path, RequestHandler<I, O> handler) {
+      target.patternFirst(method, prefix + path, new CorsRoute<>(policy, handler));
+      return this;
     }
-    if (request.containsHeader("Access-Control-Request-Headers") || settings.allowedHeaders.length() > 0) {
-      response.setHeader("Access-Control-Allow-Headers", settings.allowedHeaders);
+
+    @Override
+    public Router<I, O> patternLast(HttpMethod method, String path, RequestHandler<I, O> handler) {
+      target.patternLast(method, prefix + path, new CorsRoute<>(policy, handler));
+      return this;
     }
-    response.setHeader("Access-Control-Allow-Methods", allowedMethodsString);
   }
 
-  private void addSharedHeaders(HttpServerResponse<O> response, String origin) {
-    response.setHeader("Access-Control-Allow-Origin", settings.allowedOrigins.isEmpty() ? "*" : origin);
+  /**
+   * CorsSettings compiled into pre-encoded header sets: one per allowed origin,
+   * or a single wildcard set when any origin is allowed.
+   */
+  private static class Policy {
+    private static final int MAX_CACHED_ORIGINS = 4096;
 
-    if (settings.allowCredentials) {
-      response.setHeader("Access-Control-Allow-Credentials", "true");
+    private final CorsSettings settings;
+    private final AllowedOrigins origins;
+    private final CorsHeaders simpleOnly;
+    private final CorsHeaders anyOrigin;
+    private final CorsHeaders headers;
+    private volatile OriginHeaders byOrigin;
+
+    private Policy(CorsSettings settings) {
+      this.settings = settings;
+
+      if (settings.origins != null) {
+        origins = settings.origins;
+      } else if (settings.allowedOrigins.isEmpty()) {
+        origins = AllowedOrigins.of(OriginMatcher.ANY);
+      } else {
+        origins = AllowedOrigins.of(settings.allowedOrigins, Collections.emptyList());
+      }
+
+      CorsHeaders simpleOnly = CorsHeaders.EMPTY;
+      if (settings.exposedHeaders.length() > 0) {
+        simpleOnly = simpleOnly.with(ACCESS_CONTROL_EXPOSE_HEADERS, settings.exposedHeaders);
+      }
+      this.simpleOnly = simpleOnly;
+      anyOrigin = shared("*").with(simpleOnly);
+      byOrigin = new OriginHeaders(origins.matcher());
+
+      CorsHeaders extra = CorsHeaders.EMPTY;
+      for (Map.Entry<String, String> header : settings.headers.entrySet()) {
+        extra = extra.with(header.getKey(), header.getValue());
+      }
+      headers = extra;
+    }
+
+    /**
+     * @return the headers for a CORS request from the given origin, or null if the origin is not allowed
+     */
+    private CorsHeaders forOrigin(String origin) {
+      OriginMatcher matcher = origins.matcher();
+      if (matcher.allowsAny()) {
+        return anyOrigin;
+      }
+      OriginHeaders current = byOrigin;
+      if (current.matcher != matcher) {
+        current = new OriginHeaders(matcher);
+        byOrigin = current;
+      }
+      CorsHeaders headers = current.headers.get(origin);
+      if (headers == null) {
+        if (!matcher.matches(origin)) {
+          return null;
+        }
+        headers = shared(origin).with(simpleOnly);
+        if (current.headers.size() < MAX_CACHED_ORIGINS) {
+          current.headers.put(origin, headers);
+        }
+      }
+      return headers;
+    }
+
+    private CorsHeaders preflight(String allowedMethods, boolean headersRequested) {
+      CorsHeaders preflight = CorsHeaders.EMPTY;
+      if (settings.maxAge != null) {
+        preflight = preflight.with(ACCESS_CONTROL_MAX_AGE, Long.toString(settings.maxAge.get(ChronoUnit.SECONDS)));
+      }
+      if (headersRequested || settings.allowedHeaders.length() > 0) {
+        preflight = preflight.with(ACCESS_CONTROL_ALLOW_HEADERS, settings.allowedHeaders);
+      }
+      return preflight.with(ACCESS_CONTROL_ALLOW_METHODS, allowedMethods);
+    }
+
+    private CorsHeaders shared(String allowOrigin) {
+      CorsHeaders shared = CorsHeaders.EMPTY.with(ACCESS_CONTROL_ALLOW_ORIGIN, allowOrigin);
+      if (settings.allowCredentials) {
+        shared = shared.with(ACCESS_CONTROL_ALLOW_CREDENTIALS, "true");
+      }
+      return shared;
     }
-  }
 
-  private boolean originNotAllowed(String origin) {
-    return !settings.allowedOrigins.isEmpty() && !settings.allowedOrigins.contains(origin);
+    /**
+     * Header sets for the origins allowed by one version of the allowed origins,
+     * built upfront for exact origins and on first use for wildcard matches.
+     */
+    private class OriginHeaders {
+      private final OriginMatcher matcher;
+      private final Map<String, CorsHeaders> headers = new ConcurrentHashMap<>();
+
+      private OriginHeaders(OriginMatcher matcher) {
+        this.matcher = matcher;
+        for (String origin : matcher.exactOrigins()) {
+          headers.put(origin, shared(origin).with(simpleOnly));
+        }
+      }
+    }
   }
 
   public static class CorsSettings {
@@ -141,6 +467,7 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
     private final Duration maxAge;
     private final Map<String, String> headers;
     private final AuthorisationHandler authorisationHandler;
+    private final AllowedOrigins origins;
 
     public CorsSettings() {
       allowedMethods = Collections.emptySet();
@@ -156,6 +483,7 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
       maxAge = null;
       headers = Collections.emptyMap();
       authorisationHandler = request -> just(true);
+      origins = null;
     }
 
     private CorsSettings(
@@ -166,7 +494,8 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
       CharSequence exposedHeaders,
       Duration maxAge,
       Map<String, String> headers,
-      AuthorisationHandler authorisationHandler
+      AuthorisationHandler authorisationHandler,
+      AllowedOrigins origins
     ) {
       this.allowCredentials = allowCredentials;
       this.allowedHeaders = allowedHeaders;
@@ -176,6 +505,7 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
       this.maxAge = maxAge;
       this.headers = headers;
       this.authorisationHandler = authorisationHandler;
+      this.origins = origins;
     }
 
     public CorsSettings allowCredential(boolean newValue) {
@@ -187,7 +517,8 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
         exposedHeaders,
         maxAge,
         headers,
-        authorisationHandler
+        authorisationHandler,
+        origins
       );
     }
 
@@ -200,7 +531,8 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
         exposedHeaders,
         maxAge,
         headers,
-        authorisationHandler
+        authorisationHandler,
+        origins
       );
     }
 
@@ -216,10 +548,15 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
         exposedHeaders,
         maxAge,
         headers,
-        authorisationHandler
+        authorisationHandler,
+        origins
       );
     }
 
+    /**
+     * Allows an exact origin, or a wildcard origin such as https://*.example.com.
+     * Ignored once {@link #allowOrigins(AllowedOrigins)} is used.
+     */
     public CorsSettings allowOrigin(String origin) {
       Set<String> newOrigins = new HashSet<>();
       newOrigins.addAll(allowedOrigins);
@@ -232,7 +569,8 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
         exposedHeaders,
         maxAge,
         headers,
-        authorisationHandler
+        authorisationHandler,
+        origins
       );
     }
 
@@ -245,7 +583,8 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
         exposedHeaders.length() == 0 ? header : exposedHeaders + ", " + header,
         maxAge,
         headers,
-        authorisationHandler
+        authorisationHandler,
+        origins
       );
     }
 
@@ -258,7 +597,8 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
         exposedHeaders,
         newDuration,
         headers,
-        authorisationHandler
+        authorisationHandler,
+        origins
       );
     }
 
@@ -273,7 +613,25 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
         exposedHeaders,
         maxAge,
         newHeaders,
-        authorisationHandler
+        authorisationHandler,
+        origins
+      );
+    }
+
+    /**
+     * Takes the allowed origins from a hot-swappable set instead of {@link #allowOrigin(String)}.
+     */
+    public CorsSettings allowOrigins(AllowedOrigins newOrigins) {
+      return new CorsSettings(
+        allowCredentials,
+        allowedHeaders,
+        allowedMethods,
+        allowedOrigins,
+        exposedHeaders,
+        maxAge,
+        headers,
+        authorisationHandler,
+        newOrigins
       );
     }
 
@@ -286,9 +644,17 @@ public class Dispatch<I, O> implements RequestHandler<I, O> {
         exposedHeaders,
         maxAge,
         headers,
-        authorisationHandler
+        authorisationHandler,
+        origins
       );
     }
+
+    /**
+     * Puts a {@link CachingAuthorisationHandler} in front of the current authorisation handler.
+     */
+    public CorsSettings cacheAuthorisation(Duration ttl, int maxSize) {
+      return withAuthorisation(new CachingAuthorisationHandler(authorisationHandler, ttl, maxSize));
+    }
   }
 
   public interface AuthorisationHandler {
@@ -0,0 +1,181 @@
+package org.pk11.rxnetty.router.cors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable matcher for a set of allowed origins.
+ *
+ * Exact origins are kept in a hash set. Wildcard origins such as {@code https://*.tenant.example.com},
+ * {@code *://example.com} or {@code https://*.example.com:*} are compiled into a trie keyed by the
+ * reversed host labels, so a lookup costs one step per label of the request origin whatever the number
+ * of entries. Regular expressions are supported as a last resort and are tried one after the other.
+ */
+final class OriginMatcher {
+  static final String ANY = "*";
+
+  private static final String SCHEME_SEPARATOR = "://";
+  private static final int NO_PORT = -1;
+  private static final int ANY_PORT = -2;
+
+  private final boolean any;
+  private final Set<String> exact;
+  private final Node wildcards;
+  private final List<Pattern> patterns;
+
+  OriginMatcher(Collection<String> origins, Collection<Pattern> patterns) {
+    boolean any = false;
+    Set<String> exact = new HashSet<>();
+    Node wildcards = new Node();
+    for (String origin : origins) {
+      if (ANY.equals(origin)) {
+        any = true;
+      } else if (origin.indexOf('*') >= 0) {
+        addWildcard(wildcards, origin);
+      } else {
+        exact.add(origin);
+      }
+    }
+    this.any = any;
+    this.exact = Collections.unmodifiableSet(exact);
+    this.wildcards = wildcards;
+    this.patterns = Collections.unmodifiableList(new ArrayList<>(patterns));
+  }
+
+  boolean allowsAny() {
+    return any;
+  }
+
+  Set<String> exactOrigins() {
+    return exact;
+  }
+
+  boolean matches(String origin) {
+    if (any || exact.contains(origin)) {
+      return true;
+    }
+    if (!wildcards.isEmpty() && matchesWildcard(origin)) {
+      return true;
+    }
+    for (Pattern pattern : patterns) {
+      if (pattern.matcher(origin).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matchesWildcard(String origin) {
+    int schemeEnd = origin.indexOf(SCHEME_SEPARATOR);
+    if (schemeEnd <= 0) {
+      return false;
+    }
+    int hostStart = schemeEnd + SCHEME_SEPARATOR.length();
+    int hostEnd = hostEnd(origin, hostStart);
+    int port = NO_PORT;
+    if (hostEnd < origin.length()) {
+      try {
+        port = Integer.parseInt(origin.substring(hostEnd + 1));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    String scheme = origin.substring(0, schemeEnd);
+
+    Node node = wildcards;
+    int labelEnd = hostEnd;
+    while (labelEnd > hostStart) {
+      int labelStart = origin.lastIndexOf('.', labelEnd - 1) + 1;
+      if (labelStart < hostStart) {
+        labelStart = hostStart;
+      }
+      node = node.children.get(origin.substring(labelStart, labelEnd));
+      if (node == null) {
+        return false;
+      }
+      labelEnd = labelStart - 1;
+      boolean isSubdomain = labelEnd > hostStart;
+      if (isSubdomain && Rule.anyMatches(node.subdomainRules, scheme, port)) {
+        return true;
+      }
+    }
+    return Rule.anyMatches(node.hostRules, scheme, port);
+  }
+
+  private static int hostEnd(String origin, int hostStart) {
+    int portSeparator = origin.lastIndexOf(':');
+    int ipv6End = origin.lastIndexOf(']');
+    return portSeparator > hostStart && portSeparator > ipv6End ? portSeparator : origin.length();
+  }
+
+  private static void addWildcard(Node root, String origin) {
+    int schemeEnd = origin.indexOf(SCHEME_SEPARATOR);
+    if (schemeEnd <= 0) {
+      throw new IllegalArgumentException(String.format("Origin '%s' has no scheme", origin));
+    }
+    String scheme = origin.substring(0, schemeEnd).toLowerCase(Locale.ROOT);
+    int hostStart = schemeEnd + SCHEME_SEPARATOR.length();
+    int hostEnd = hostEnd(origin, hostStart);
+    int port = NO_PORT;
+    if (hostEnd < origin.length()) {
+      String portString = origin.substring(hostEnd + 1);
+      port = ANY.equals(portString) ? ANY_PORT : Integer.parseInt(portString);
+    }
+    String host = origin.substring(hostStart, hostEnd).toLowerCase(Locale.ROOT);
+    boolean subdomains = host.startsWith("*.");
+    if (subdomains) {
+      host = host.substring(2);
+    }
+    if (host.isEmpty() || host.indexOf('*') >= 0) {
+      throw new IllegalArgumentException(
+        String.format("Origin '%s' may only use '*' as scheme, port or leading host label", origin)
+      );
+    }
+
+    Node node = root;
+    String[] labels = host.split("\\.");
+    for (int i = labels.length - 1; i >= 0; i--) {
+      node = node.children.computeIfAbsent(labels[i], label -> new Node());
+    }
+    Rule rule = new Rule(ANY.equals(scheme) ? null : scheme, port);
+    (subdomains ? node.subdomainRules : node.hostRules).add(rule);
+  }
+
+  private static class Node {
+    private final Map<String, Node> children = new HashMap<>();
+    private final List<Rule> hostRules = new ArrayList<>(1);
+    private final List<Rule> subdomainRules = new ArrayList<>(1);
+
+    private boolean isEmpty() {
+      return children.isEmpty();
+    }
+  }
+
+  private static class Rule {
+    // null matches any scheme
+    private final String scheme;
+    private final int port;
+
+    private Rule(String scheme, int port) {
+      this.scheme = scheme;
+      this.port = port;
+    }
+
+    private static boolean anyMatches(List<Rule> rules, String scheme, int port) {
+      for (Rule rule : rules) {
+        if ((rule.scheme == null || rule.scheme.equals(scheme)) && (rule.port == ANY_PORT || rule.port == port)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -3,6 +3,7 @@ package org.pk11.rxnetty.router.cors;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.reactivex.netty.protocol.http.client.HttpClient;
 import io.reactivex.netty.protocol.http.client.HttpClientRequest;
 import io.reactivex.netty.protocol.http.client.HttpClientResponse;
 import io.reactivex.netty.protocol.http.server.HttpServer;
@@ -11,14 +12,22 @@ import io.reactivex.netty.protocol.http.server.HttpServerResponse;
 import io.reactivex.netty.protocol.http.server.RequestHandler;
 import io.reactivex.netty.util.CollectBytes;
 import org.junit.Test;
+import org.pk11.rxnetty.router.MissCounter;
 import org.pk11.rxnetty.router.Router;
 import org.pk11.rxnetty.router.cors.Dispatch.CorsSettings;
 import rx.Observable;
+import rx.subjects.PublishSubject;
 
 import java.nio.charset.Charset;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static io.reactivex.netty.protocol.http.client.HttpClient.newClient;
 import static org.junit.Assert.assertEquals;
@@ -603,6 +612,176 @@ public class DispatchTest {
     server.shutdown();
   }
 
+  @Test
+  public void shouldCountMissesBehindCors() throws Exception {
+    Router<ByteBuf, ByteBuf> router = new Router<ByteBuf, ByteBuf>()
+      .GET("/hello", new HelloHandler())
+      .notFound(new Handler404());
+    MissCounter misses = new MissCounter(256);
+    HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+      Dispatch.usingCors(new CorsSettings(), router).countingMisses(misses)
+    );
+
+    for (HttpMethod method : Arrays.asList(HttpMethod.GET, HttpMethod.POST, HttpMethod.OPTIONS)) {
+      HttpClientResponse<ByteBuf> response = newClient("localhost", server.getServerPort())
+        .createRequest(method, "/wp-login.php")
+        .setHeader("Origin", "http://foo")
+        .toBlocking()
+        .first();
+      assertEquals(HttpResponseStatus.NOT_FOUND, response.getStatus());
+      assertEquals("*", response.getHeader("Access-Control-Allow-Origin"));
+      assertEquals("Not found!", getContent(response));
+    }
+    assertEquals("Hello!", getContent(newClient("localhost", server.getServerPort()).createGet("/hello").toBlocking().first()));
+    assertEquals(3, misses.estimate("/wp-login.php"));
+    assertEquals(3, misses.getTotal());
+
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldReflectRoutesChangedAfterStartInOptionsResponse() throws Exception {
+    Router<ByteBuf, ByteBuf> router = new Router<ByteBuf, ByteBuf>()
+      .GET("/hello", new HelloHandler())
+      .notFound(new Handler404());
+    HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(Dispatch.usingCors(new CorsSettings(), router));
+
+    assertEquals("GET", getContent(optionsClient(server).setHeader("Origin", "http://foo").toBlocking().first()));
+
+    router.POST("/hello", new HelloHandler());
+    HttpClientResponse<ByteBuf> response = optionsClient(server)
+      .setHeader("Origin", "http://foo")
+      .toBlocking()
+      .first();
+    assertEquals("GET, POST", getContent(response));
+    assertEquals("GET, POST", response.getHeader("Access-Control-Allow-Methods"));
+
+    router.removePath("/hello");
+    response = optionsClient(server)
+      .setHeader("Origin", "http://foo")
+      .toBlocking()
+      .first();
+    assertEquals(HttpResponseStatus.NOT_FOUND, response.getStatus());
+    assertEquals("Not found!", getContent(response));
+
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldAnswerOptionsForEachPathOfParameterisedRoute() throws Exception {
+    HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+      Dispatch.usingCors(
+        new CorsSettings(),
+        new Router<ByteBuf, ByteBuf>()
+          .GET("/orders/:id", new HelloHandler())
+          .DELETE("/orders/latest", new HelloHandler())
+          .notFound(new Handler404())
+      )
+    );
+    HttpClient<ByteBuf, ByteBuf> client = newClient("localhost", server.getServerPort());
+
+    for (String path : Arrays.asList("/orders/1", "/orders/latest", "/orders/2", "/orders/latest")) {
+      HttpClientResponse<ByteBuf> response = client.createOptions(path)
+        .setHeader("Origin", "http://foo")
+        .setHeader("Access-Control-Request-Method", "GET")
+        .toBlocking()
+        .first();
+      String methods = path.endsWith("latest") ? "DELETE, GET" : "GET";
+      assertEquals(path, methods, response.getHeader("Access-Control-Allow-Methods"));
+      assertEquals(path, methods, getContent(response));
+    }
+
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldWalkRoutesOncePerPreflightPath() throws Exception {
+    AtomicInteger walks = new AtomicInteger();
+    Router<ByteBuf, ByteBuf> router = new Router<ByteBuf, ByteBuf>() {
+      @Override
+      public Collection<HttpMethod> getMethodsFor(String path) {
+        walks.incrementAndGet();
+        return super.getMethodsFor(path);
+      }
+    }
+      .GET("/orders/:id", new HelloHandler())
+      .notFound(new Handler404());
+    HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(Dispatch.usingCors(new CorsSettings(), router));
+    HttpClient<ByteBuf, ByteBuf> client = newClient("localhost", server.getServerPort());
+
+    for (int i = 0; i < 3; i++) {
+      HttpClientResponse<ByteBuf> response = client.createOptions("/orders/1")
+        .setHeader("Origin", "http://foo")
+        .setHeader("Access-Control-Request-Method", "GET")
+        .toBlocking()
+        .first();
+      assertEquals("GET", response.getHeader("Access-Control-Allow-Methods"));
+    }
+    assertEquals(1, walks.get());
+
+    router.POST("/orders/:id", new HelloHandler());
+    HttpClientResponse<ByteBuf> response = client.createOptions("/orders/1")
+      .setHeader("Origin", "http://foo")
+      .toBlocking()
+      .first();
+    assertEquals("GET, POST", getContent(response));
+    assertEquals(2, walks.get());
+
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldResolveSettingsPerRouteAndPrefix() throws Exception {
+    HttpServer<ByteBuf, ByteBuf> server = HttpServer.newServer().start(
+      Dispatch.usingCors(
+        new CorsSettings(),
+        new Router<ByteBuf, ByteBuf>()
+          .GET("/hello", new HelloHandler())
+          .GET("/internal", Dispatch.withoutCors(new HelloHandler()))
+          .register(Dispatch.withCors(
+            "/account",
+            new CorsSettings().allowOrigin("https://app.example.com").allowCredential(true),
+            account -> account
+              .GET("/me", new HelloHandler())
+              .POST("/me", new HelloHandler())
+          ))
+          .notFound(new Handler404())
+      )
+    );
+    HttpClient<ByteBuf, ByteBuf> client = newClient("localhost", server.getServerPort());
+
+    HttpClientResponse<ByteBuf> response =
+      client.createGet("/hello").setHeader("Origin", "http://foo").toBlocking().first();
+    assertEquals("*", response.getHeader("Access-Control-Allow-Origin"));
+    assertFalse(response.containsHeader("Access-Control-Allow-Credentials"));
+
+    response = client.createGet("/internal").setHeader("Origin", "http://foo").toBlocking().first();
+    assertEquals("Hello!", getContent(response));
+    assertFalse(response.containsHeader("Access-Control-Allow-Origin"));
+
+    response = client.createGet("/account/me").setHeader("Origin", "http://foo").toBlocking().first();
+    assertFalse(response.containsHeader("Access-Control-Allow-Origin"));
+
+    response = client.createOptions("/account/me")
+      .setHeader("Origin", "https://app.example.com")
+      .setHeader("Access-Control-Request-Method", "POST")
+      .toBlocking()
+      .first();
+    assertEquals("https://app.example.com", response.getHeader("Access-Control-Allow-Origin"));
+    assertEquals("true", response.getHeader("Access-Control-Allow-Credentials"));
+    assertEquals("GET, POST", response.getHeader("Access-Control-Allow-Methods"));
+
+    response = client.createOptions("/account/me")
+      .setHeader("Origin", "https://app.example.com")
+      .setHeader("Access-Control-Request-Method", "NOT A METHOD")
+      .toBlocking()
+      .first();
+    assertEquals(200, response.getStatus().code());
+    assertEquals("GET, POST", response.getHeader("Access-Control-Allow-Methods"));
+
+    server.shutdown();
+  }
+
   @Test
   public void shouldAddHeaderToOptions() throws Exception {
     HttpServer<ByteBuf, ByteBuf> server = newServer(
@@ -693,4 +872,147 @@ public class DispatchTest {
     assertFalse(response.containsHeader("Access-Control-Allow-Headers"));
     server.shutdown();
   }
+
+  @Test
+  public void shouldReturnOriginForWildcardOriginGivenSimpleRequest() throws Exception {
+    HttpServer<ByteBuf, ByteBuf> server = newServer(
+      new CorsSettings()
+        .allowOrigin("https://*.tenant.example.com")
+    );
+    HttpClientResponse<ByteBuf> response = getClient(server)
+      .setHeader("Origin", "https://shop.tenant.example.com")
+      .toBlocking()
+      .first();
+
+    assertEquals("https://shop.tenant.example.com", response.getHeader("Access-Control-Allow-Origin"));
+    assertEquals("Hello!", getContent(response));
+
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldRejectWildcardOriginOnWrongSchemeOrApexGivenSimpleRequest() throws Exception {
+    HttpServer<ByteBuf, ByteBuf> server = newServer(
+      new CorsSettings()
+        .allowOrigin("https://*.tenant.example.com")
+    );
+    for (String origin : Arrays.asList("http://shop.tenant.example.com", "https://tenant.example.com", "https://shop.other.example.com")) {
+      HttpClientResponse<ByteBuf> response = getClient(server)
+        .setHeader("Origin", origin)
+        .toBlocking()
+        .first();
+
+      assertFalse(response.containsHeader("Access-Control-Allow-Origin"));
+      assertEquals("", getContent(response));
+    }
+
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldApplySwappedOriginsWithoutRebuildingGivenSimpleRequest() throws Exception {
+    AllowedOrigins origins = AllowedOrigins.of("http://foo");
+    HttpServer<ByteBuf, ByteBuf> server = newServer(
+      new CorsSettings()
+        .allowOrigins(origins)
+    );
+    HttpClientResponse<ByteBuf> before = getClient(server)
+      .setHeader("Origin", "http://bar:8080")
+      .toBlocking()
+      .first();
+    assertFalse(before.containsHeader("Access-Control-Allow-Origin"));
+    getContent(before);
+
+    origins.set(Arrays.asList("http://foo", "*://bar:*"));
+    HttpClientResponse<ByteBuf> after = getClient(server)
+      .setHeader("Origin", "http://bar:8080")
+      .toBlocking()
+      .first();
+    assertEquals("http://bar:8080", after.getHeader("Access-Control-Allow-Origin"));
+
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldCacheAuthorisationDecisionsForPreflight() throws Exception {
+    AtomicInteger lookups = new AtomicInteger();
+    HttpServer<ByteBuf, ByteBuf> server = newServer(
+      new CorsSettings()
+        .withAuthorisation(request -> just(lookups.incrementAndGet() > 0))
+        .cacheAuthorisation(Duration.ofMinutes(1), 100)
+    );
+    for (int i = 0; i < 3; i++) {
+      HttpClientResponse<ByteBuf> response = optionsClient(server)
+        .setHeader("Origin", "http://foo")
+        .setHeader("Authorization", "Bearer a")
+        .toBlocking()
+        .first();
+      assertEquals(HttpResponseStatus.OK, response.getStatus());
+      getContent(response);
+    }
+    assertEquals(1, lookups.get());
+
+    HttpClientResponse<ByteBuf> otherCredentials = optionsClient(server)
+      .setHeader("Origin", "http://foo")
+      .setHeader("Authorization", "Bearer b")
+      .toBlocking()
+      .first();
+    getContent(otherCredentials);
+    assertEquals(2, lookups.get());
+
+    HttpClientResponse<ByteBuf> otherMethod = optionsClient(server)
+      .setHeader("Origin", "http://foo")
+      .setHeader("Authorization", "Bearer b")
+      .setHeader("Access-Control-Request-Method", "PUT")
+      .toBlocking()
+      .first();
+    getContent(otherMethod);
+    assertEquals(3, lookups.get());
+
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldCoalesceConcurrentAuthorisationLookups() throws Exception {
+    AtomicInteger subscriptions = new AtomicInteger();
+    PublishSubject<Boolean> decision = PublishSubject.create();
+    CachingAuthorisationHandler handler = new CachingAuthorisationHandler(
+      request -> decision.doOnSubscribe(subscriptions::incrementAndGet),
+      Duration.ofMinutes(1),
+      100,
+      request -> "key"
+    );
+    List<Boolean> results = new ArrayList<>();
+    handler.allow(null).subscribe(results::add);
+    handler.allow(null).subscribe(results::add);
+    decision.onNext(true);
+
+    assertEquals(1, subscriptions.get());
+    assertEquals(Arrays.asList(true, true), results);
+  }
+
+  @Test
+  public void shouldEvictOldestAuthorisationDecisions() throws Exception {
+    AtomicInteger lookups = new AtomicInteger();
+    AtomicReference<String> key = new AtomicReference<>();
+    CachingAuthorisationHandler handler = new CachingAuthorisationHandler(
+      request -> Observable.fromCallable(() -> lookups.incrementAndGet() > 0),
+      Duration.ofMinutes(1),
+      2,
+      request -> key.get()
+    );
+    for (String next : Arrays.asList("a", "b", "c")) {
+      key.set(next);
+      handler.allow(null).toBlocking().single();
+      Thread.sleep(1);
+    }
+    assertEquals(2, handler.size());
+
+    key.set("c");
+    handler.allow(null).toBlocking().single();
+    assertEquals(3, lookups.get());
+    key.set("a");
+    handler.allow(null).toBlocking().single();
+    assertEquals(4, lookups.get());
+  }
 }
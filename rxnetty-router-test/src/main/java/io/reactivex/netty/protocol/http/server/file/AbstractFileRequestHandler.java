@@ -17,19 +17,17 @@ package io.reactivex.netty.protocol.http.server.file;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.util.AsciiString;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
 import io.reactivex.netty.protocol.http.server.HttpServerResponse;
 import io.reactivex.netty.protocol.http.server.RequestHandler;
+import org.pk11.rxnetty.router.Conditional;
 
 import javax.activation.MimetypesFileTypeMap;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.Locale;
-import java.util.TimeZone;
 import java.util.regex.Pattern;
 
 public abstract class AbstractFileRequestHandler implements RequestHandler<ByteBuf, ByteBuf> {
@@ -39,17 +37,28 @@ public abstract class AbstractFileRequestHandler implements RequestHandler<ByteB
   public static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
   public static final int HTTP_CACHE_SECONDS = 60;
 
+  private static final AsciiString CACHE_CONTROL_VALUE = new AsciiString("private, max-age=" + HTTP_CACHE_SECONDS);
+
   /**
    * Sets the Date header for the HTTP response
    *
    * @param response
    *            HTTP response
    */
-  public static void setDateHeader(HttpServerResponse<ByteBuf> response, SimpleDateFormat dateFormatter) {
-    dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+  public static void setDateHeader(HttpServerResponse<ByteBuf> response) {
+    response.setHeader(HttpHeaderNames.DATE, HttpDates.date());
+  }
 
-    Calendar time = new GregorianCalendar();
-    response.setHeader(HttpHeaderNames.DATE, dateFormatter.format(time.getTime()));
+  /**
+   * Sets the Date header for the HTTP response
+   *
+   * @param response
+   *            HTTP response
+   * @deprecated the formatter is ignored, use {@link #setDateHeader(HttpServerResponse)}
+   */
+  @Deprecated
+  public static void setDateHeader(HttpServerResponse<ByteBuf> response, SimpleDateFormat dateFormatter) {
+    setDateHeader(response);
   }
 
   /**
@@ -61,18 +70,37 @@ public abstract class AbstractFileRequestHandler implements RequestHandler<ByteB
    *            file to extract content type
    */
   public static void setDateAndCacheHeaders(HttpServerResponse<ByteBuf> response, File fileToCache) {
-    SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-    dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-    // Date header
-    Calendar time = new GregorianCalendar();
-    response.setHeader(HttpHeaderNames.DATE, dateFormatter.format(time.getTime()));
-
-    // Add cache headers
-    time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-    response.setHeader(HttpHeaderNames.EXPIRES, dateFormatter.format(time.getTime()));
-    response.setHeader(HttpHeaderNames.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
-    response.setHeader(HttpHeaderNames.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
+    setDateAndCacheHeaders(response, fileToCache.lastModified());
+  }
+
+  /**
+   * Sets the Date and Cache headers for the HTTP Response
+   *
+   * @param response
+   *            HTTP response
+   * @param lastModified
+   *            last modification time of the content in milliseconds
+   */
+  public static void setDateAndCacheHeaders(HttpServerResponse<ByteBuf> response, long lastModified) {
+    response.setHeader(HttpHeaderNames.DATE, HttpDates.date());
+    response.setHeader(HttpHeaderNames.EXPIRES, HttpDates.expires());
+    response.setHeader(HttpHeaderNames.CACHE_CONTROL, CACHE_CONTROL_VALUE);
+    response.setHeader(HttpHeaderNames.LAST_MODIFIED, HttpDates.lastModified(lastModified));
+  }
+
+  /**
+   * Checks the conditional headers of a request against the current version of the content.
+   * If-None-Match takes precedence over If-Modified-Since.
+   *
+   * @param request
+   *            HTTP request
+   * @param etag
+   *            quoted entity tag of the content
+   * @param lastModified
+   *            last modification time of the content in milliseconds
+   */
+  public static boolean isNotModified(HttpServerRequest<ByteBuf> request, String etag, long lastModified) {
+    return Conditional.isNotModified(request, etag, lastModified);
   }
 
   /**
@@ -84,8 +112,57 @@ public abstract class AbstractFileRequestHandler implements RequestHandler<ByteB
    *            file to extract content type
    */
   public static void setContentTypeHeader(HttpServerResponse<ByteBuf> response, File file) {
+    response.setHeader(HttpHeaderNames.CONTENT_TYPE, getContentType(file.getPath()));
+  }
+
+  /**
+   * Resolves the content type for a file name
+   *
+   * @param fileName
+   *            file name or path
+   */
+  public static String getContentType(String fileName) {
     MimetypesFileTypeMap mimeTypesMap = new MimetypesFileTypeMap();
-    response.setHeader(HttpHeaderNames.CONTENT_TYPE, mimeTypesMap.getContentType(file.getPath()));
+    return mimeTypesMap.getContentType(fileName);
+  }
+
+  /**
+   * Checks whether the given Accept-Encoding header value accepts a content coding
+   *
+   * @param acceptEncoding
+   *            Accept-Encoding header value, may be null
+   * @param coding
+   *            content coding, e.g. gzip
+   */
+  public static boolean acceptsEncoding(String acceptEncoding, String coding) {
+    if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+      return false;
+    }
+    boolean accepted = false;
+    for (String element : acceptEncoding.split(",")) {
+      String[] parts = element.split(";");
+      String name = parts[0].trim();
+      boolean exact = name.equalsIgnoreCase(coding);
+      if (!exact && !name.equals("*")) {
+        continue;
+      }
+      boolean allowed = true;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=") || param.startsWith("Q=")) {
+          try {
+            allowed = Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            allowed = false;
+          }
+        }
+      }
+      if (exact) {
+        return allowed;
+      }
+      accepted = allowed;
+    }
+    return accepted;
   }
 
   public static String sanitizeUri(String uri)  {
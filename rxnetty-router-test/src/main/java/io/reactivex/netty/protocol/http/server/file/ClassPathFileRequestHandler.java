@@ -35,6 +35,19 @@ public class ClassPathFileRequestHandler extends FileRequestHandler {
   private final String prefix;
 
   public ClassPathFileRequestHandler(String prefix) {
+    this(prefix, new CompressedFileCache());
+  }
+
+  public ClassPathFileRequestHandler(String prefix, CompressedFileCache compressedFileCache) {
+    this(prefix, compressedFileCache, null);
+  }
+
+  public ClassPathFileRequestHandler(
+    String prefix,
+    CompressedFileCache compressedFileCache,
+    MappedFileCache mappedFileCache
+  ) {
+    super(compressedFileCache, mappedFileCache);
     this.prefix = prefix;
 
     // Remove any trailing '/'s
@@ -0,0 +1,122 @@
+package io.reactivex.netty.protocol.http.server.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bounded cache of gzip compressed file contents, keyed by file path and
+ * last modified time, so that each version of a file is compressed only once,
+ * and each version of a precompressed sidecar file is read only once.
+ * Least recently used entries are evicted once the total size of the cached
+ * content exceeds the given byte budget. Versions whose compressed content alone
+ * exceeds the budget are remembered as such and served uncompressed, rather
+ * than compressed again for every request.
+ */
+public class CompressedFileCache {
+  public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+  private static final byte[] NOT_COMPRESSIBLE = new byte[0];
+  private static final byte[] TOO_LARGE = new byte[0];
+
+  private final long maxBytes;
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  public CompressedFileCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  public CompressedFileCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the gzip compressed content of the given file, compressing it if the
+   * current version is not cached yet.
+   *
+   * @param file
+   *            file to compress
+   * @return compressed content, or null if compression does not make the file smaller
+   *         or the compressed content does not fit in the cache
+   */
+  public byte[] get(File file) throws IOException {
+    byte[] content = get(file, CompressedFileCache::compress);
+    return content == NOT_COMPRESSIBLE || content == TOO_LARGE ? null : content;
+  }
+
+  /**
+   * Returns the content of an already compressed file, such as a .gz sidecar,
+   * reading it if the current version is not cached yet.
+   *
+   * @param file
+   *            compressed file
+   * @return compressed content, or null if it does not fit in the cache
+   */
+  public byte[] getCompressed(File file) throws IOException {
+    byte[] content = get(file, compressed -> Files.readAllBytes(compressed.toPath()));
+    return content == TOO_LARGE ? null : content;
+  }
+
+  public synchronized long size() {
+    return totalBytes;
+  }
+
+  private synchronized void put(String key, Entry entry) {
+    Entry previous = entries.put(key, entry);
+    if (previous != null) {
+      totalBytes -= previous.content.length;
+    }
+    totalBytes += entry.content.length;
+
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (totalBytes > maxBytes && eldest.hasNext()) {
+      totalBytes -= eldest.next().content.length;
+      eldest.remove();
+    }
+  }
+
+  private byte[] get(File file, Reader reader) throws IOException {
+    String key = file.getPath();
+    long lastModified = file.lastModified();
+
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry == null || entry.lastModified != lastModified) {
+      entry = new Entry(lastModified, reader.read(file));
+      // the content read is still served this once
+      put(key, entry.content.length > maxBytes ? new Entry(lastModified, TOO_LARGE) : entry);
+    }
+    return entry.content;
+  }
+
+  private static byte[] compress(File file) throws IOException {
+    byte[] content = Files.readAllBytes(file.toPath());
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write(content);
+    }
+    return compressed.size() < content.length ? compressed.toByteArray() : NOT_COMPRESSIBLE;
+  }
+
+  private interface Reader {
+    byte[] read(File file) throws IOException;
+  }
+
+  private static class Entry {
+    private final long lastModified;
+    private final byte[] content;
+
+    private Entry(long lastModified, byte[] content) {
+      this.lastModified = lastModified;
+      this.content = content;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package io.reactivex.netty.protocol.http.server.file;
+
+import org.pk11.rxnetty.router.Conditional;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Strong, content-hash entity tags for files, computed once per file version
+ * (path, last modified time and length). Holds at most a fixed number of entries,
+ * evicting the least recently used.
+ */
+public class ETagCache {
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  private final Map<String, Tag> entries;
+
+  public ETagCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  public ETagCache(int maxEntries) {
+    this.entries = new BoundedMap(maxEntries);
+  }
+
+  /**
+   * @param file
+   *            file to tag
+   * @return quoted strong entity tag for the current content of the file
+   */
+  public String get(File file) throws IOException {
+    String key = file.getPath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    Tag entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry == null || entry.lastModified != lastModified || entry.length != length) {
+      entry = new Tag(lastModified, length, hash(file));
+      synchronized (this) {
+        entries.put(key, entry);
+      }
+    }
+    return entry.etag;
+  }
+
+  private static String hash(File file) throws IOException {
+    MessageDigest digest = Conditional.sha256();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = new FileInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return Conditional.quote(digest.digest());
+  }
+
+  private static class BoundedMap extends LinkedHashMap<String, Tag> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxEntries;
+
+    private BoundedMap(int maxEntries) {
+      super(16, 0.75f, true);
+      this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Tag> eldest) {
+      return size() > maxEntries;
+    }
+  }
+
+  private static class Tag {
+    private final long lastModified;
+    private final long length;
+    private final String etag;
+
+    private Tag(long lastModified, long length, String etag) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.etag = etag;
+    }
+  }
+}
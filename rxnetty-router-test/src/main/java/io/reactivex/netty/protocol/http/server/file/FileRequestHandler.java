@@ -17,25 +17,25 @@ package io.reactivex.netty.protocol.http.server.file;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.reactivex.netty.protocol.http.server.HttpServerRequest;
 import io.reactivex.netty.protocol.http.server.HttpServerResponse;
-import org.apache.commons.io.IOUtils;
+import org.pk11.rxnetty.router.Conditional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rx.Observable;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.URI;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.nio.file.Files;
 
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCEPT_ENCODING;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONNECTION;
-import static io.netty.handler.codec.http.HttpHeaderNames.IF_MODIFIED_SINCE;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpHeaderNames.ETAG;
+import static io.netty.handler.codec.http.HttpHeaderNames.VARY;
 import static io.netty.handler.codec.http.HttpHeaders.Values.KEEP_ALIVE;
 import static io.netty.handler.codec.http.HttpMethod.GET;
 import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
@@ -48,6 +48,17 @@ import static io.netty.handler.codec.http.HttpResponseStatus.OK;
  * Base implementation for serving local files.  Resolving the request URI to
  * a local file URI is deferred to the subclass.
  *
+ * Clients accepting gzip get a precompressed sidecar file (e.g. app.js.gz next to
+ * app.js) when there is one at least as recent as the file, otherwise a compressed copy of the file. Either is
+ * kept in a {@link CompressedFileCache}, so each version is read or compressed only once.
+ *
+ * With a {@link MappedFileCache} uncompressed content is served straight from a memory mapping
+ * of the file. Files must then be replaced by renaming a new file over them, not rewritten in place,
+ * see {@link MappedFileCache}.
+ *
+ * Responses carry a content-hash ETag computed once per file version, and conditional
+ * requests are answered with 304 Not Modified.
+ *
  * @author elandau
  *
  */
@@ -55,6 +66,30 @@ public abstract class FileRequestHandler extends AbstractFileRequestHandler {
   private static final Logger logger = LoggerFactory.getLogger(FileRequestHandler.class);
 
   private static final int CHUNK_SIZE = 8192;
+  private static final String GZIP_SUFFIX = ".gz";
+
+  private final CompressedFileCache compressedFileCache;
+  private final MappedFileCache mappedFileCache;
+  private final ETagCache eTagCache = new ETagCache();
+
+  protected FileRequestHandler() {
+    this(new CompressedFileCache());
+  }
+
+  protected FileRequestHandler(CompressedFileCache compressedFileCache) {
+    this(compressedFileCache, null);
+  }
+
+  /**
+   * @param compressedFileCache
+   *            cache for gzip compressed file contents
+   * @param mappedFileCache
+   *            enables serving uncompressed content from memory mappings, may be null
+   */
+  protected FileRequestHandler(CompressedFileCache compressedFileCache, MappedFileCache mappedFileCache) {
+    this.compressedFileCache = compressedFileCache;
+    this.mappedFileCache = mappedFileCache;
+  }
 
   @Override
   public Observable<Void> handle(HttpServerRequest<ByteBuf> request, HttpServerResponse<ByteBuf> response) {
@@ -64,8 +99,6 @@ public abstract class FileRequestHandler extends AbstractFileRequestHandler {
       return response.sendHeaders();
     }
 
-    RandomAccessFile raf = null;
-
     String sanitizedUri = sanitizeUri(request.getUri());
     if (sanitizedUri == null) {
       response.setStatus(FORBIDDEN);
@@ -94,49 +127,59 @@ public abstract class FileRequestHandler extends AbstractFileRequestHandler {
       return response.sendHeaders();
     }
 
-    long fileLength;
+    String etag;
+    byte[] gzipped;
     try {
-      raf = new RandomAccessFile(file, "r");
-      fileLength = raf.length();
-    }
-    catch (Exception e) {
+      etag = eTagCache.get(file);
+      gzipped = acceptsEncoding(request.getHeader(ACCEPT_ENCODING), HttpHeaderValues.GZIP.toString())
+        ? gzippedContent(file)
+        : null;
+    } catch (IOException e) {
       logger.warn("Error accessing file {}", uri, e);
-      if (raf != null) {
-        try {
-          raf.close();
-        } catch (IOException e1) {
-          logger.warn("Error closing file {}", uri, e1);
-        }
-      }
       return Observable.error(e);
     }
+    if (gzipped != null) {
+      // the hash is over the uncompressed bytes, so the gzipped representation only gets a weak tag
+      etag = Conditional.weak(etag);
+    }
 
     // Cache Validation
-    String ifModifiedSince = request.getHeader(IF_MODIFIED_SINCE);
-    if (ifModifiedSince != null && !ifModifiedSince.isEmpty()) {
-      SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-      Date ifModifiedSinceDate = null;
-      try {
-        ifModifiedSinceDate = dateFormatter.parse(ifModifiedSince);
-      } catch (ParseException e) {
-        logger.warn("Failed to parse {} header", IF_MODIFIED_SINCE);
-      }
+    if (isNotModified(request, etag, file.lastModified())) {
+      response.setStatus(NOT_MODIFIED);
+      response.setHeader(ETAG, etag);
+      response.setHeader(VARY, ACCEPT_ENCODING);
+      setDateHeader(response);
+      return response.sendHeaders();
+    }
 
-      if (ifModifiedSinceDate != null) {
-        // Only compare up to the second because the datetime format we send to the client
-        // does not have milliseconds
-        long ifModifiedSinceDateSeconds = ifModifiedSinceDate.getTime() / 1000;
-        long fileLastModifiedSeconds = file.lastModified() / 1000;
-        if (ifModifiedSinceDateSeconds == fileLastModifiedSeconds) {
-          response.setStatus(NOT_MODIFIED);
-          setDateHeader(response, dateFormatter);
-          return response.sendHeaders();
+    ByteBuf content;
+    MappedFileCache.Lease lease = null;
+    response.setHeader(ETAG, etag);
+    if (gzipped != null) {
+      response.setHeader(CONTENT_ENCODING, HttpHeaderValues.GZIP);
+      content = Unpooled.wrappedBuffer(gzipped);
+    } else {
+      try {
+        if (mappedFileCache != null) {
+          lease = mappedFileCache.acquire(file);
+          // rewritten in place since it was mapped, reading past its new end would fault
+          if (!lease.isCurrent(file)) {
+            lease.release();
+            lease = null;
+          }
         }
+        content = lease != null
+          ? lease.content()
+          : Unpooled.wrappedBuffer(Files.readAllBytes(file.toPath()));
+      } catch (IOException e) {
+        logger.warn("Failed to read file {}", uri, e);
+        return Observable.error(e);
       }
     }
 
     response.setStatus(OK);
-    response.setHeader("Content-Length", fileLength);
+    response.setHeader(CONTENT_LENGTH, content.readableBytes());
+    response.setHeader(VARY, ACCEPT_ENCODING);
     setContentTypeHeader(response, file);
     setDateAndCacheHeaders(response, file);
 
@@ -144,12 +187,29 @@ public abstract class FileRequestHandler extends AbstractFileRequestHandler {
       response.setHeader(CONNECTION, KEEP_ALIVE);
     }
 
-    try {
-      return response.write(Observable.just(Unpooled.copiedBuffer(IOUtils.toByteArray(new FileInputStream(file)))));
-    } catch (IOException e) {
-      logger.warn("Failed to write chunked file {}", e);
-      return Observable.error(e);
+    if (lease != null) {
+      return response.write(Observable.just(content))
+        .doOnTerminate(lease::release)
+        .doOnUnsubscribe(lease::release);
+    }
+    return response.write(Observable.just(content));
+  }
+
+  /**
+   * Returns the gzipped content of the file from its sidecar or the compressed file cache
+   *
+   * @return compressed content, or null if the file should be sent uncompressed
+   */
+  private byte[] gzippedContent(File file) throws IOException {
+    if (file.getName().endsWith(GZIP_SUFFIX)) {
+      return null;
+    }
+    File sidecar = new File(file.getPath() + GZIP_SUFFIX);
+    // a sidecar older than its file was left behind by a previous deploy
+    if (sidecar.isFile() && sidecar.lastModified() >= file.lastModified()) {
+      return compressedFileCache.getCompressed(sidecar);
     }
+    return compressedFileCache.get(file);
   }
 
   protected abstract URI resolveUri(String path);
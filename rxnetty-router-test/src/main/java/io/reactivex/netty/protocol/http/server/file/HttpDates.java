@@ -0,0 +1,102 @@
+package io.reactivex.netty.protocol.http.server.file;
+
+import io.netty.util.AsciiString;
+import org.pk11.rxnetty.router.Conditional;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared, preformatted HTTP date header values.
+ *
+ * The Date and Expires values are formatted at most once per second, Last-Modified values once
+ * per distinct modification time, and conditional request headers are parsed without allocating.
+ */
+public final class HttpDates {
+  private static final DateTimeFormatter FORMATTER =
+    DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+  private static final int MAX_LAST_MODIFIED_ENTRIES = 4096;
+
+  private static final ConcurrentMap<Long, AsciiString> lastModified = new ConcurrentHashMap<>();
+
+  private static volatile Snapshot current = new Snapshot(System.currentTimeMillis() / 1000);
+
+  private HttpDates() {
+  }
+
+  /**
+   * @return the Date header value for the current second
+   */
+  public static AsciiString date() {
+    return snapshot().date;
+  }
+
+  /**
+   * @return the Expires header value for content cached {@link AbstractFileRequestHandler#HTTP_CACHE_SECONDS} from now
+   */
+  public static AsciiString expires() {
+    return snapshot().expires;
+  }
+
+  /**
+   * @param millis
+   *            last modification time in milliseconds
+   * @return the Last-Modified header value for the given time
+   */
+  public static AsciiString lastModified(long millis) {
+    Long second = millis / 1000;
+    AsciiString value = lastModified.get(second);
+    if (value == null) {
+      if (lastModified.size() >= MAX_LAST_MODIFIED_ENTRIES) {
+        lastModified.clear();
+      }
+      value = format(second);
+      lastModified.put(second, value);
+    }
+    return value;
+  }
+
+  /**
+   * Parses an HTTP date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT", as sent in conditional request headers.
+   * The obsolete RFC 850 and asctime formats are accepted too.
+   *
+   * @param value
+   *            header value, may be null
+   * @return the time in milliseconds, or -1 if the value is missing or not an HTTP date
+   * @see Conditional#parseDate(CharSequence)
+   */
+  public static long parse(CharSequence value) {
+    return Conditional.parseDate(value);
+  }
+
+  private static Snapshot snapshot() {
+    Snapshot snapshot = current;
+    long second = System.currentTimeMillis() / 1000;
+    if (snapshot.second != second) {
+      snapshot = new Snapshot(second);
+      current = snapshot;
+    }
+    return snapshot;
+  }
+
+  private static AsciiString format(long second) {
+    return new AsciiString(FORMATTER.format(Instant.ofEpochSecond(second)));
+  }
+
+  private static class Snapshot {
+    private final long second;
+    private final AsciiString date;
+    private final AsciiString expires;
+
+    private Snapshot(long second) {
+      this.second = second;
+      this.date = format(second);
+      this.expires = format(second + AbstractFileRequestHandler.HTTP_CACHE_SECONDS);
+    }
+  }
+}
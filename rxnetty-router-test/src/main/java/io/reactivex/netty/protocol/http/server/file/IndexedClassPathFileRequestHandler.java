@@ -0,0 +1,236 @@
+package io.reactivex.netty.protocol.http.server.file;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.reactivex.netty.protocol.http.server.HttpServerRequest;
+import io.reactivex.netty.protocol.http.server.HttpServerResponse;
+import org.apache.commons.io.IOUtils;
+import org.pk11.rxnetty.router.Conditional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.ACCEPT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONNECTION;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaderNames.ETAG;
+import static io.netty.handler.codec.http.HttpHeaderNames.VARY;
+import static io.netty.handler.codec.http.HttpHeaderValues.KEEP_ALIVE;
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static io.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+
+/**
+ * Serves class path resources from an in-memory index built once at construction time.
+ * Unlike {@link ClassPathFileRequestHandler} it works with resources packaged inside JARs,
+ * and the request path never touches the class loader or the file system.
+ *
+ * A resource with a sibling ending in .gz is served from that sibling to clients accepting gzip.
+ *
+ * JARs built without directory entries are found through their manifest or the class loader's URLs.
+ */
+public class IndexedClassPathFileRequestHandler extends AbstractFileRequestHandler {
+  private static final Logger logger = LoggerFactory.getLogger(IndexedClassPathFileRequestHandler.class);
+
+  private static final String GZIP_SUFFIX = ".gz";
+
+  private final Map<String, Resource> resources;
+
+  public IndexedClassPathFileRequestHandler(String prefix) {
+    this(prefix, Thread.currentThread().getContextClassLoader());
+  }
+
+  public IndexedClassPathFileRequestHandler(String prefix, ClassLoader classLoader) {
+    // Remove any trailing '/'s
+    while (prefix.endsWith("/"))
+      prefix = prefix.substring(0, prefix.length() - 1);
+
+    try {
+      resources = Collections.unmodifiableMap(index(prefix, classLoader));
+    } catch (IOException e) {
+      throw new UncheckedIOException(String.format("Unable to index class path resources under '%s'", prefix), e);
+    }
+    logger.debug("Indexed {} resources under '{}'", resources.size(), prefix);
+  }
+
+  public int size() {
+    return resources.size();
+  }
+
+  @Override
+  public Observable<Void> handle(HttpServerRequest<ByteBuf> request, HttpServerResponse<ByteBuf> response) {
+    if (!request.getHttpMethod().equals(GET)) {
+      response.setStatus(METHOD_NOT_ALLOWED);
+      return response.sendHeaders();
+    }
+
+    String sanitizedUri = sanitizeUri(request.getUri());
+    if (sanitizedUri == null) {
+      response.setStatus(FORBIDDEN);
+      return response.sendHeaders();
+    }
+
+    String path = sanitizedUri.replace(File.separatorChar, '/');
+    Resource resource = resources.get(path);
+    if (resource == null) {
+      response.setStatus(NOT_FOUND);
+      return response.sendHeaders();
+    }
+
+    Resource gzipped = path.endsWith(GZIP_SUFFIX) ? null : resources.get(path + GZIP_SUFFIX);
+    if (gzipped != null && !acceptsEncoding(request.getHeader(ACCEPT_ENCODING), HttpHeaderValues.GZIP.toString())) {
+      gzipped = null;
+    }
+    String etag = gzipped != null ? Conditional.weak(resource.etag) : resource.etag;
+
+    response.setHeader(VARY, ACCEPT_ENCODING);
+    if (isNotModified(request, etag, resource.lastModified)) {
+      response.setStatus(NOT_MODIFIED);
+      response.setHeader(ETAG, etag);
+      setDateHeader(response);
+      return response.sendHeaders();
+    }
+
+    byte[] content = resource.content;
+    response.setHeader(ETAG, etag);
+    if (gzipped != null) {
+      content = gzipped.content;
+      response.setHeader(CONTENT_ENCODING, HttpHeaderValues.GZIP);
+    }
+
+    response.setStatus(OK);
+    response.setHeader(CONTENT_LENGTH, content.length);
+    response.setHeader(CONTENT_TYPE, resource.contentType);
+    setDateAndCacheHeaders(response, resource.lastModified);
+
+    if (request.isKeepAlive()) {
+      response.setHeader(CONNECTION, KEEP_ALIVE);
+    }
+
+    return response.write(Observable.just(Unpooled.wrappedBuffer(content)));
+  }
+
+  private static Map<String, Resource> index(String prefix, ClassLoader classLoader) throws IOException {
+    Map<String, Resource> resources = new HashMap<>();
+    Set<String> jars = new HashSet<>();
+    Enumeration<URL> roots = classLoader.getResources(prefix);
+    while (roots.hasMoreElements()) {
+      URL root = roots.nextElement();
+      if ("jar".equals(root.getProtocol())) {
+        indexJar(jarFile(root), prefix, jars, resources);
+      } else if ("file".equals(root.getProtocol())) {
+        indexDirectory(root, resources);
+      } else {
+        logger.warn("Skipping unsupported class path root {}", root);
+      }
+    }
+
+    // the class loader only finds a prefix in a JAR that has a directory entry for it
+    Enumeration<URL> manifests = classLoader.getResources(JarFile.MANIFEST_NAME);
+    while (manifests.hasMoreElements()) {
+      URL manifest = manifests.nextElement();
+      if ("jar".equals(manifest.getProtocol())) {
+        indexJar(jarFile(manifest), prefix, jars, resources);
+      }
+    }
+    for (ClassLoader loader = classLoader; loader != null; loader = loader.getParent()) {
+      if (loader instanceof URLClassLoader) {
+        for (URL url : ((URLClassLoader) loader).getURLs()) {
+          if ("file".equals(url.getProtocol()) && url.getPath().endsWith(".jar")) {
+            indexJar(url, prefix, jars, resources);
+          }
+        }
+      }
+    }
+    return resources;
+  }
+
+  private static URL jarFile(URL resource) throws IOException {
+    return ((JarURLConnection) resource.openConnection()).getJarFileURL();
+  }
+
+  private static void indexJar(URL jarFile, String prefix, Set<String> indexed, Map<String, Resource> resources)
+    throws IOException {
+    if (!indexed.add(jarFile.toExternalForm())) {
+      return;
+    }
+    JarURLConnection connection = (JarURLConnection) new URL("jar:" + jarFile.toExternalForm() + "!/").openConnection();
+    connection.setUseCaches(false);
+    String base = prefix + "/";
+    try (JarFile jar = connection.getJarFile()) {
+      Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        JarEntry entry = entries.nextElement();
+        if (entry.isDirectory() || !entry.getName().startsWith(base)) {
+          continue;
+        }
+        String path = entry.getName().substring(base.length() - 1);
+        try (InputStream in = jar.getInputStream(entry)) {
+          resources.putIfAbsent(path, new Resource(IOUtils.toByteArray(in), entry.getTime(), path));
+        }
+      }
+    }
+  }
+
+  private static void indexDirectory(URL root, Map<String, Resource> resources) throws IOException {
+    Path base;
+    try {
+      base = Paths.get(root.toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+    try (Stream<Path> files = Files.walk(base)) {
+      for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+        if (Files.isHidden(file)) {
+          continue;
+        }
+        String path = "/" + base.relativize(file).toString().replace(File.separatorChar, '/');
+        resources.putIfAbsent(
+          path,
+          new Resource(Files.readAllBytes(file), Files.getLastModifiedTime(file).toMillis(), path)
+        );
+      }
+    }
+  }
+
+  private static class Resource {
+    private final byte[] content;
+    private final long lastModified;
+    private final String contentType;
+    private final String etag;
+
+    private Resource(byte[] content, long lastModified, String path) {
+      this.content = content;
+      this.lastModified = lastModified;
+      this.contentType = getContentType(path);
+      this.etag = Conditional.strongETag(content);
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package io.reactivex.netty.protocol.http.server.file;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps read-only memory mappings of served files, so that hot assets are read from the
+ * OS page cache instead of being copied onto the heap for every request.
+ *
+ * Each file version, as told by its modification time and length, is mapped once. Requests
+ * {@link #acquire(File)} a lease on the mapping and release it once the response is written.
+ * A mapping is unmapped when the file changes (or the cache is cleared) and the last lease on it
+ * has been released.
+ *
+ * Served files must be replaced atomically, by writing a new file and renaming it over the old one,
+ * never rewritten or truncated in place. A mapping keeps the old file alive after a rename, but reading
+ * a mapping past the end of a file truncated in place faults: the JVM throws an InternalError or
+ * crashes with SIGBUS. Leases are checked against the file length when acquired and before their
+ * content is used, which narrows that window but cannot close it.
+ *
+ * Least recently used mappings are dropped once the total size of the mapped files exceeds the
+ * given byte budget, and mappings of deleted files are dropped when found. A file larger than the
+ * budget is mapped for its lease only.
+ *
+ * Unmapping relies on Netty's {@link PlatformDependent#freeDirectBuffer}; where Netty cannot free
+ * direct buffers that is a no-op and the mapping is unmapped once it is garbage collected.
+ */
+public class MappedFileCache {
+  public static final long DEFAULT_MAX_BYTES = 256 * 1024 * 1024;
+
+  private final long maxBytes;
+  private final Map<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  public MappedFileCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  public MappedFileCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Leases the memory mapping of the given file, mapping the current version of the file first
+   * if needed.
+   *
+   * @param file
+   *            file to map
+   * @return lease that must be released once its content is no longer used
+   * @throws FileNotFoundException if the file was deleted
+   */
+  public Lease acquire(File file) throws IOException {
+    String key = file.getPath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    synchronized (this) {
+      Mapping mapping = mappings.get(key);
+      if (mapping != null && mapping.isVersion(lastModified, length)) {
+        return new Lease(mapping);
+      }
+      if (!file.isFile()) {
+        remove(key);
+        throw new FileNotFoundException(file.getPath());
+      }
+    }
+
+    Mapping mapping = new Mapping(lastModified, length, map(file, length));
+    synchronized (this) {
+      Lease lease = new Lease(mapping);
+      put(key, mapping);
+      return lease;
+    }
+  }
+
+  /**
+   * Drops all mappings. Files are unmapped as soon as no response is using them anymore.
+   */
+  public synchronized void clear() {
+    mappings.values().forEach(Mapping::release);
+    mappings.clear();
+    totalBytes = 0;
+  }
+
+  public synchronized int size() {
+    return mappings.size();
+  }
+
+  /**
+   * @return the total size of the mapped files kept
+   */
+  public synchronized long getBytes() {
+    return totalBytes;
+  }
+
+  private void put(String key, Mapping mapping) {
+    remove(key);
+    if (mapping.length > maxBytes) {
+      mapping.release();
+      return;
+    }
+    mappings.put(key, mapping);
+    totalBytes += mapping.length;
+
+    Iterator<Map.Entry<String, Mapping>> eldest = mappings.entrySet().iterator();
+    while (eldest.hasNext()) {
+      Map.Entry<String, Mapping> entry = eldest.next();
+      if (totalBytes > maxBytes || !new File(entry.getKey()).isFile()) {
+        totalBytes -= entry.getValue().length;
+        entry.getValue().release();
+        eldest.remove();
+      }
+    }
+  }
+
+  private void remove(String key) {
+    Mapping previous = mappings.remove(key);
+    if (previous != null) {
+      totalBytes -= previous.length;
+      previous.release();
+    }
+  }
+
+  private static MappedByteBuffer map(File file, long length) throws IOException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException(String.format("File '%s' is too large to be mapped", file));
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+  }
+
+  /**
+   * A use of a mapping by a single response.
+   */
+  public static class Lease {
+    private final Mapping mapping;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Lease(Mapping mapping) {
+      mapping.retain();
+      this.mapping = mapping;
+    }
+
+    /**
+     * @return false if the file changed since it was mapped, in which case the content must not be used
+     */
+    public boolean isCurrent(File file) {
+      return mapping.isVersion(file.lastModified(), file.length());
+    }
+
+    /**
+     * @return a new buffer over the whole mapping, valid until the lease is released
+     */
+    public ByteBuf content() {
+      return Unpooled.wrappedBuffer(mapping.buffer.duplicate());
+    }
+
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        mapping.release();
+      }
+    }
+  }
+
+  private static class Mapping {
+    private final long lastModified;
+    private final long length;
+    private final MappedByteBuffer buffer;
+    // one reference is held by the cache itself until the mapping is replaced
+    private int references = 1;
+
+    private Mapping(long lastModified, long length, MappedByteBuffer buffer) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.buffer = buffer;
+    }
+
+    private boolean isVersion(long lastModified, long length) {
+      return this.lastModified == lastModified && this.length == length;
+    }
+
+    private synchronized void retain() {
+      references++;
+    }
+
+    private synchronized void release() {
+      if (--references == 0) {
+        PlatformDependent.freeDirectBuffer(buffer);
+      }
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package io.reactivex.netty.protocol.http.server.file;
+
+import io.netty.util.AsciiString;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+public class HttpDatesTest {
+
+  private static final long SUNDAY = ZonedDateTime.of(1994, 11, 6, 8, 49, 37, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+
+  @Test
+  public void shouldParseImfFixdate() {
+    Assert.assertEquals(SUNDAY, HttpDates.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+    Assert.assertEquals(0, HttpDates.parse("Thu, 01 Jan 1970 00:00:00 GMT"));
+    Assert.assertEquals(951782400000L, HttpDates.parse("Tue, 29 Feb 2000 00:00:00 GMT"));
+  }
+
+  @Test
+  public void shouldParseRfc850Date() {
+    Assert.assertEquals(SUNDAY, HttpDates.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+    Assert.assertEquals(951782400000L, HttpDates.parse("Tuesday, 29-Feb-00 00:00:00 GMT"));
+    Assert.assertEquals(SUNDAY + 3 * 24 * 3600 * 1000L, HttpDates.parse("Wednesday, 09-Nov-94 08:49:37 GMT"));
+  }
+
+  @Test
+  public void shouldParseAsctimeDate() {
+    Assert.assertEquals(SUNDAY, HttpDates.parse("Sun Nov  6 08:49:37 1994"));
+    Assert.assertEquals(SUNDAY + 10 * 24 * 3600 * 1000L, HttpDates.parse("Wed Nov 16 08:49:37 1994"));
+  }
+
+  @Test
+  public void shouldRejectInvalidDates() {
+    Assert.assertEquals(-1, HttpDates.parse(null));
+    Assert.assertEquals(-1, HttpDates.parse(""));
+    Assert.assertEquals(-1, HttpDates.parse("yesterday"));
+    Assert.assertEquals(-1, HttpDates.parse("Sun, 06 Nov 1994 08:49:37 UTC"));
+    Assert.assertEquals(-1, HttpDates.parse("Sun, 06 Foo 1994 08:49:37 GMT"));
+    Assert.assertEquals(-1, HttpDates.parse("Sun, 32 Nov 1994 08:49:37 GMT"));
+    Assert.assertEquals(-1, HttpDates.parse("Sun, 06 Nov 1994 24:49:37 GMT"));
+    Assert.assertEquals(-1, HttpDates.parse("Sun, 06 Nov 1994 08-49-37 GMT"));
+    Assert.assertEquals(-1, HttpDates.parse("Sun, 6 Nov 1994 08:49:37 GMT"));
+    Assert.assertEquals(-1, HttpDates.parse("Sunday, 06 Nov 94 08:49:37 GMT"));
+    Assert.assertEquals(-1, HttpDates.parse("Sunday, 06-Nov-9x 08:49:37 GMT"));
+    Assert.assertEquals(-1, HttpDates.parse("Sun Nov 6  08:49:37 1994"));
+    Assert.assertEquals(-1, HttpDates.parse("1994-11-06T08:49:37Z"));
+  }
+
+  @Test
+  public void shouldFormatWhatItParses() {
+    Assert.assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDates.lastModified(SUNDAY + 999).toString());
+    long now = System.currentTimeMillis();
+    Assert.assertEquals(now / 1000 * 1000, HttpDates.parse(HttpDates.lastModified(now)));
+    Assert.assertSame(HttpDates.lastModified(SUNDAY), HttpDates.lastModified(SUNDAY + 500));
+  }
+
+  @Test
+  public void shouldRefreshDateOncePerSecond() throws Exception {
+    // start right after a second begins, so both reads fall in the same second
+    long second = System.currentTimeMillis() / 1000;
+    while (System.currentTimeMillis() / 1000 == second) {
+      Thread.sleep(1);
+    }
+    AsciiString date = HttpDates.date();
+    Assert.assertSame(date, HttpDates.date());
+    Assert.assertEquals((second + 1) * 1000, HttpDates.parse(date));
+    Assert.assertEquals(
+      HttpDates.parse(date) + AbstractFileRequestHandler.HTTP_CACHE_SECONDS * 1000L,
+      HttpDates.parse(HttpDates.expires())
+    );
+
+    Thread.sleep(1000);
+    AsciiString next = HttpDates.date();
+    Assert.assertNotSame(date, next);
+    Assert.assertTrue(HttpDates.parse(next) > HttpDates.parse(date));
+  }
+}